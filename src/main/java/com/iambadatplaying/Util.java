@@ -4,6 +4,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -12,6 +13,7 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.ServerSocket;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.OptionalLong;
@@ -96,6 +98,55 @@ public final class Util {
         return true;
     }
 
+    /**
+     * Computes a 64 bit hash of a JSON element that is consistent with {@link #equalJsonElements(JsonElement, JsonElement)}:
+     * member order of objects is ignored, element order of arrays is not.
+     * Storing this hash allows rejecting a changed payload in O(1), equal hashes still have to be confirmed with
+     * {@link #equalJsonElements(JsonElement, JsonElement)}.
+     */
+    public static long hashJsonElement(JsonElement element) {
+        if (element == null || element.isJsonNull()) return 0L;
+        if (element.isJsonObject()) {
+            long hash = 0x6A09E667F3BCC909L;
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                //Summing keeps the hash independent of member order
+                hash += mixHash(hashString(entry.getKey()) * 31 + hashJsonElement(entry.getValue()));
+            }
+            return mixHash(hash);
+        }
+        if (element.isJsonArray()) {
+            long hash = 0xBB67AE8584CAA73BL;
+            for (JsonElement arrayElement : element.getAsJsonArray()) {
+                hash = hash * 31 + hashJsonElement(arrayElement);
+            }
+            return mixHash(hash);
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isString()) return mixHash(hashString(primitive.getAsString()));
+        if (primitive.isNumber()) {
+            //JsonPrimitive#equals compares parsed numbers by their double value, use all of its bits
+            double value = primitive.getAsDouble();
+            if (value == 0) value = 0d;
+            return mixHash(Double.doubleToLongBits(value) + 0x3C6EF372FE94F82BL);
+        }
+        return mixHash(primitive.hashCode() + 0x3C6EF372FE94F82BL);
+    }
+
+    private static long hashString(String s) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static long mixHash(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+
     public static boolean jsonKeysPresent(JsonObject jsonObject, String... attributes) {
         if (jsonObject == null || attributes == null) return false;
         for (String attribute : attributes) {
@@ -1,47 +1,263 @@
 package com.iambadatplaying.data;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.iambadatplaying.Managable;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.data.dispatch.DataEvent;
+import com.iambadatplaying.data.dispatch.EventPipeline;
+import com.iambadatplaying.data.dispatch.EventPriority;
+import com.iambadatplaying.data.dispatch.OverflowPolicy;
+import com.iambadatplaying.data.dispatch.UriRoutingIndex;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
+import com.iambadatplaying.server.LocalServer;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public abstract class BasicDataManager implements Managable, Loggable {
     public static final String KEY_EVENT_TYPE = "eventType";
     public static final String KEY_EVENT_DATA = "data";
 
-    protected static final String UPDATE_TYPE_CREATE = "Create";
-    protected static final String UPDATE_TYPE_UPDATE = "Update";
-    protected static final String UPDATE_TYPE_DELETE = "Delete";
+    public static final String EVENT_PREFIX_INITIAL = "Initial";
+    public static final String EVENT_PREFIX_PATCH   = "Patch";
 
-    protected       boolean running = false;
-    protected final Starter starter;
+    protected static final String UPDATE_TYPE_CREATE = DataEvent.TYPE_CREATE;
+    protected static final String UPDATE_TYPE_UPDATE = DataEvent.TYPE_UPDATE;
+    protected static final String UPDATE_TYPE_DELETE = DataEvent.TYPE_DELETE;
+
+    //Streamed snapshots are serialized without the lock up to this often before the lock is held instead
+    private static final int MAX_SNAPSHOT_ATTEMPTS = 3;
+
+    public static final int            DEFAULT_MAILBOX_CAPACITY        = 1024;
+    //Managers hold state, every dropped event would leave them out of sync with the RC
+    public static final OverflowPolicy DEFAULT_MAILBOX_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    protected       boolean       running = false;
+    protected final Starter       starter;
+    private final   EventPipeline mailbox;
+
+    private final AtomicLong dedupeChecks = new AtomicLong();
+    private final AtomicLong dedupeHits   = new AtomicLong();
+
+    //Incremented whenever a changed state is published
+    private final AtomicLong     version         = new AtomicLong();
+    private final List<Runnable> changeListeners = new ArrayList<>();
+    //Every event this manager published, guarded by the lock
+    private       long           publications    = 0;
 
     protected BasicDataManager(Starter starter) {
+        this(starter, 1, DEFAULT_MAILBOX_CAPACITY, DEFAULT_MAILBOX_OVERFLOW_POLICY);
+    }
+
+    /**
+     * @param mailboxLaneCount      Number of workers, events for the same URI always stay in order on the same one.
+     *                              More than one requires the manager to handle different URIs concurrently
+     * @param mailboxCapacity       Number of events that may wait in every lane before the overflow policy applies
+     * @param mailboxOverflowPolicy What happens to new events while the mailbox is full
+     */
+    protected BasicDataManager(Starter starter, int mailboxLaneCount, int mailboxCapacity, OverflowPolicy mailboxOverflowPolicy) {
         this.starter = starter;
+        this.mailbox = new EventPipeline(
+                getClass().getSimpleName(),
+                mailboxLaneCount,
+                mailboxCapacity,
+                mailboxOverflowPolicy,
+                DataEvent::getUri,
+                event -> update(event.getType(), event.getUri(), event.getData())
+        );
+    }
+
+    /**
+     * Queues an event for this manager. It is processed on the manager's own workers,
+     * so a manager blocking on a RC call only delays its own events.
+     */
+    public void post(DataEvent event) {
+        mailbox.submit(event);
+    }
+
+    /**
+     * @return The priority of this manager's events, derived from the static prefix of its URI pattern
+     */
+    public EventPriority getPriority() {
+        String prefix = UriRoutingIndex.getLiteralPrefix(getURIPattern().pattern());
+        return starter.getDataManger().getPriorityClassifier().classify(prefix);
+    }
+
+    /**
+     * Sends the full message to regular clients and the patch to clients that asked for deltas.
+     * Holds the manager's lock, so no client can subscribe in between computing and sending the patch.
+     */
+    protected synchronized void broadcast(JsonObject event, JsonArray patch, String... topics) {
+        JsonObject patchEvent = patch.size() == 0 ? null : getPatchData(patch);
+        starter.getLocalServer().publish(event, patchEvent, getPriority(), topics);
+        publications++;
+        if (patchEvent != null) publishedChange();
     }
 
-    protected String getEventDataString(JsonObject data) {
+    //Must be called while holding the lock
+    private void publishedChange() {
+        version.incrementAndGet();
+        if (changeListeners.isEmpty()) return;
+        List<Runnable> listeners = new ArrayList<>(changeListeners);
+        changeListeners.clear();
+        //Listeners may write responses, they must not run under the manager's lock
+        listeners.forEach(ForkJoinPool.commonPool()::execute);
+    }
+
+    /**
+     * @return The version of the published state, it increases with every change sent to the clients
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Runs the listener once, as soon as the published version is newer than the given one
+     */
+    public void awaitChange(long sinceVersion, Runnable listener) {
+        synchronized (this) {
+            if (version.get() <= sinceVersion) {
+                changeListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void cancelAwaitChange(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * @return The published state together with its version, empty if there is none
+     */
+    public synchronized Optional<VersionedState> getVersionedState() {
+        //Nothing can be published while the lock is held, so the state matches the version
+        return getSnapshot(null).map(state -> new VersionedState(version.get(), state));
+    }
+
+    protected JsonObject getEventData(JsonElement data) {
         JsonObject jsonObject = new JsonObject();
         jsonObject.addProperty(KEY_EVENT_TYPE, getEventName());
         jsonObject.add(KEY_EVENT_DATA, data);
-        return jsonObject.toString();
+        return jsonObject;
     }
 
-    protected String getInitialDataString(JsonObject data) {
+    public String getInitialDataString(JsonElement data) {
         JsonObject jsonObject = new JsonObject();
-        jsonObject.addProperty(KEY_EVENT_TYPE, "Initial"+getEventName());
+        jsonObject.addProperty(KEY_EVENT_TYPE, EVENT_PREFIX_INITIAL + getEventName());
         jsonObject.add(KEY_EVENT_DATA, data);
         return jsonObject.toString();
     }
 
+    protected JsonObject getPatchData(JsonArray patch) {
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty(KEY_EVENT_TYPE, EVENT_PREFIX_PATCH + getEventName());
+        jsonObject.add(KEY_EVENT_DATA, patch);
+        return jsonObject;
+    }
+
+    /**
+     * @param key A single map key, null for the whole state
+     * @return The state that the next patches will be relative to, empty if there is nothing to send
+     */
+    protected Optional<JsonElement> getSnapshot(String key) {
+        return Optional.empty();
+    }
+
+    /**
+     * Managers with large states return the entries of the whole state here, so the initial snapshot can be streamed in chunks.
+     * Called while holding the manager's lock, the returned entries must never change afterwards as they are serialized without it.
+     *
+     * @return The entries of the published state, empty if the snapshot is sent as one message
+     */
+    protected Optional<? extends Collection<? extends Map.Entry<?, ? extends JsonElement>>> getSnapshotEntries() {
+        return Optional.empty();
+    }
+
+    /**
+     * @return Upper bound for the size of a single chunk of a streamed snapshot
+     */
+    protected int getSnapshotChunkBytes() {
+        return SnapshotStreamer.DEFAULT_CHUNK_BYTES;
+    }
+
+    /**
+     * Runs the subscription and hands out the initial snapshot while no update can be published,
+     * so the snapshot and the following patches line up.
+     *
+     * @param key             A single map key, null for the whole state
+     * @param initialDataSink Receives the snapshot with this manager's priority, so later patches can not overtake it
+     */
+    public void subscribe(String key, Runnable subscription, BiConsumer<String, EventPriority> initialDataSink) {
+        if (key == null && subscribeStreamed(subscription, initialDataSink)) return;
+        subscribeSingle(key, subscription, initialDataSink);
+    }
+
+    /**
+     * Serializes the chunks without holding the lock, so large snapshots do not stall updates.
+     * The chunks are only handed out if nothing was published in the meantime, otherwise the subscriber could
+     * receive an event before the snapshot it applies to. The last attempt serializes under the lock.
+     *
+     * @return False if the manager does not stream its snapshots
+     */
+    private boolean subscribeStreamed(Runnable subscription, BiConsumer<String, EventPriority> initialDataSink) {
+        for (int attempt = 1; ; attempt++) {
+            Collection<? extends Map.Entry<?, ? extends JsonElement>> entries;
+            long sequence;
+            long capturedPublications;
+            synchronized (this) {
+                Optional<? extends Collection<? extends Map.Entry<?, ? extends JsonElement>>> snapshotEntries = getSnapshotEntries();
+                if (!snapshotEntries.isPresent()) return false;
+                entries = snapshotEntries.get();
+                sequence = starter.getLocalServer().getLastSequence();
+                capturedPublications = publications;
+                if (attempt == MAX_SNAPSHOT_ATTEMPTS) {
+                    subscription.run();
+                    SnapshotStreamer.stream(EVENT_PREFIX_INITIAL + getEventName(), sequence, entries, getSnapshotChunkBytes(), initialData -> initialDataSink.accept(initialData, getPriority()));
+                    return true;
+                }
+            }
+
+            List<String> chunks = new ArrayList<>();
+            SnapshotStreamer.stream(EVENT_PREFIX_INITIAL + getEventName(), sequence, entries, getSnapshotChunkBytes(), chunks::add);
+
+            synchronized (this) {
+                if (publications != capturedPublications) continue;
+                subscription.run();
+                chunks.forEach(initialData -> initialDataSink.accept(initialData, getPriority()));
+                return true;
+            }
+        }
+    }
+
+    private synchronized void subscribeSingle(String key, Runnable subscription, BiConsumer<String, EventPriority> initialDataSink) {
+        Optional<JsonElement> snapshot = getSnapshot(key);
+        //Every event of this manager up to this sequence number is contained in the snapshot
+        long sequence = starter.getLocalServer().getLastSequence();
+        subscription.run();
+        snapshot
+                .map(this::getInitialDataString)
+                .map(initialData -> LocalServer.stampSequence(initialData, sequence))
+                .ifPresent(initialData -> initialDataSink.accept(initialData, getPriority()));
+    }
+
     public void start() {
         if (running) return;
         running = true;
+        mailbox.start();
         doStart();
         log(LogLevel.INFO, "Started");
     }
@@ -55,6 +271,7 @@ public abstract class BasicDataManager implements Managable, Loggable {
         }
         log("Stopping");
         running = false;
+        mailbox.stop();
         doStop();
     }
 
@@ -68,7 +285,14 @@ public abstract class BasicDataManager implements Managable, Loggable {
 
     public abstract void sendCurrentState();
 
-    protected abstract Matcher getURIMatcher(String uri);
+    /**
+     * @return The pattern every URI this manager wants to receive updates for has to match
+     */
+    public abstract Pattern getURIPattern();
+
+    protected Matcher getURIMatcher(String uri) {
+        return getURIPattern().matcher(uri);
+    }
 
     protected abstract void doUpdateAndSend(Matcher uriMatcher, String type, JsonElement data);
 
@@ -84,6 +308,26 @@ public abstract class BasicDataManager implements Managable, Loggable {
 
     public abstract String getEventName();
 
+    /**
+     * Records whether an incoming payload was identical to the stored one and could be skipped
+     */
+    protected void recordDedupe(boolean hit) {
+        dedupeChecks.incrementAndGet();
+        if (hit) dedupeHits.incrementAndGet();
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        long checks = dedupeChecks.get();
+        long hits = dedupeHits.get();
+        stats.addProperty("running", running);
+        stats.addProperty("dedupeChecks", checks);
+        stats.addProperty("dedupeHits", hits);
+        stats.addProperty("dedupeHitRatio", checks == 0 ? 0 : (double) hits / checks);
+        stats.add("mailbox", mailbox.getStats());
+        return stats;
+    }
+
     public void log(LogLevel level, Object o) {
         SimpleLogger.getInstance().log(level, this.getClass().getSimpleName() + ": " + o);
     }
@@ -1,12 +1,18 @@
 package com.iambadatplaying.data;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.iambadatplaying.Managable;
 import com.iambadatplaying.Starter;
-import com.iambadatplaying.Util;
 import com.iambadatplaying.data.array.ArrayDataManager;
+import com.iambadatplaying.data.dispatch.DataEvent;
+import com.iambadatplaying.data.dispatch.EventCoalescer;
+import com.iambadatplaying.data.dispatch.EventEnvelope;
+import com.iambadatplaying.data.dispatch.EventPipeline;
+import com.iambadatplaying.data.dispatch.EventPriority;
+import com.iambadatplaying.data.dispatch.OverflowPolicy;
+import com.iambadatplaying.data.dispatch.PriorityClassifier;
+import com.iambadatplaying.data.dispatch.UriRoutingIndex;
 import com.iambadatplaying.data.map.MapDataManager;
 import com.iambadatplaying.data.map.SessionManager;
 import com.iambadatplaying.data.map.ValorantMatchDataManager;
@@ -15,14 +21,23 @@ import com.iambadatplaying.data.object.RSOAuthenticationManager;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
+import com.iambadatplaying.server.TopicIndex;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 public class DataManger implements Loggable, Managable {
 
+    private static final int HIGH_PRIORITY_LANE_COUNT = 2;
+
     private final Starter starter;
     private       boolean running = false;
 
@@ -30,9 +45,38 @@ public class DataManger implements Loggable, Managable {
     private final Map<String, ObjectDataManager> objectDataManagers = Collections.synchronizedMap(new HashMap<>());
     private final Map<String, ArrayDataManager>  arrayDataManagers  = Collections.synchronizedMap(new HashMap<>());
 
+    private final Map<String, BasicDataManager> eventManagers = new ConcurrentHashMap<>();
+
+    private final UriRoutingIndex<BasicDataManager> mapRoutes    = new UriRoutingIndex<>();
+    private final UriRoutingIndex<BasicDataManager> objectRoutes = new UriRoutingIndex<>();
+    private final UriRoutingIndex<BasicDataManager> arrayRoutes  = new UriRoutingIndex<>();
+
+    private final PriorityClassifier priorityClassifier   = new PriorityClassifier();
+    private final EventPipeline      bulkPipeline         = new EventPipeline("DataManagers-Bulk", this::dispatch);
+    private final EventPipeline      highPriorityPipeline = new EventPipeline(
+            "DataManagers-HighPriority",
+            HIGH_PRIORITY_LANE_COUNT,
+            EventPipeline.DEFAULT_CAPACITY,
+            OverflowPolicy.BLOCK,
+            DataEvent::getUri,
+            this::dispatch
+    );
+
+    //High priority events must not wait for the coalescing window
+    private final EventCoalescer coalescer = new EventCoalescer(
+            EventCoalescer.DEFAULT_WINDOW_MS,
+            event -> priorityClassifier.classify(event.getUri()) == EventPriority.HIGH,
+            this::submitToPipeline
+    );
+
+    private final AtomicLong routedEvents   = new AtomicLong();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+    private final AtomicLong skippedDataChars = new AtomicLong();
+
     public DataManger(Starter starter) {
         this.starter = starter;
         addManagers();
+        registerSubscriptionInterests();
     }
 
     private void addManagers() {
@@ -41,19 +85,71 @@ public class DataManger implements Loggable, Managable {
         addManager(new ValorantMatchDataManager(starter));
     }
 
+    private void registerSubscriptionInterests() {
+        starter.getRCConnector().getRCClient().getSubscriptionPlanner().setInterests(getClass().getSimpleName(), getURIPatterns());
+    }
+
+    /**
+     * @return The URI patterns of every manager
+     */
+    public List<Pattern> getURIPatterns() {
+        List<Pattern> patterns = new ArrayList<>();
+        mapDataManagers.values().forEach(manager -> patterns.add(manager.getURIPattern()));
+        objectDataManagers.values().forEach(manager -> patterns.add(manager.getURIPattern()));
+        arrayDataManagers.values().forEach(manager -> patterns.add(manager.getURIPattern()));
+        return patterns;
+    }
+
     private void addManager(MapDataManager manager) {
         if (manager == null) return;
         mapDataManagers.put(manager.getClass().getName(), manager);
+        mapRoutes.add(manager.getURIPattern(), manager);
+        addEventManager(manager);
     }
 
     private void addManager(ObjectDataManager manager) {
         if (manager == null) return;
         objectDataManagers.put(manager.getClass().getName(), manager);
+        objectRoutes.add(manager.getURIPattern(), manager);
+        addEventManager(manager);
     }
 
     private void addManager(ArrayDataManager manager) {
         if (manager == null) return;
         arrayDataManagers.put(manager.getClass().getName(), manager);
+        arrayRoutes.add(manager.getURIPattern(), manager);
+        addEventManager(manager);
+    }
+
+    private void addEventManager(BasicDataManager manager) {
+        String eventName = manager.getEventName();
+        if (eventName == null || eventName.isEmpty()) return;
+        eventManagers.put(eventName, manager);
+    }
+
+    /**
+     * Subscribes to a topic and hands out the initial snapshot of the manager behind it, if there is one.
+     *
+     * @param topic           An event name or "&lt;EventName&gt;/&lt;key&gt;" for a single map key
+     * @param subscription    Adds the subscriber to the topic
+     * @param initialDataSink Receives the "Initial" message of the manager
+     */
+    public void subscribe(String topic, Runnable subscription, BiConsumer<String, EventPriority> initialDataSink) {
+        String eventName = TopicIndex.getBaseTopic(topic);
+        String key = eventName.length() == topic.length() ? null : topic.substring(eventName.length() + 1);
+        BasicDataManager manager = eventManagers.get(eventName);
+        if (manager == null || !manager.isRunning()) {
+            subscription.run();
+            return;
+        }
+        manager.subscribe(key, subscription, initialDataSink);
+    }
+
+    /**
+     * @return The manager publishing events under the name
+     */
+    public Optional<BasicDataManager> getEventManager(String eventName) {
+        return Optional.ofNullable(eventManagers.get(eventName));
     }
 
     public <T> MapDataManager<?> getMapDataManager(Class<? extends MapDataManager<T>> clazz) {
@@ -69,46 +165,85 @@ public class DataManger implements Loggable, Managable {
     }
 
     public void handleData(String s) {
-        Optional<JsonArray> optDataArray = Util.parseJson(s).flatMap(Util::getAsJsonArray);
-        if (!optDataArray.isPresent()) return;
-        JsonArray dataArray = optDataArray.get();
-        if (dataArray.size() != 3) return;
-        JsonElement data = dataArray.get(2);
-        if (!data.isJsonObject()) return;
-        JsonObject preDataElement = data.getAsJsonObject();
-        JsonElement typeElement = preDataElement.get("eventType");
-        JsonElement uriElement = preDataElement.get("uri");
-        JsonElement dataElement = preDataElement.get("data");
-        if (typeElement == null || uriElement == null) return;
-        if (!typeElement.isJsonPrimitive() || !uriElement.isJsonPrimitive()) return;
-        String type = typeElement.getAsString().trim();
-        String uri = uriElement.getAsString().trim();
-        update(type, uri, dataElement);
-    }
-
-    private void update(String type, String uri, JsonElement data) {
         if (!running) return;
+        Optional<EventEnvelope> optEnvelope = EventEnvelope.read(s);
+        if (!optEnvelope.isPresent()) return;
+        EventEnvelope envelope = optEnvelope.get();
+        String uri = envelope.getUri();
+        if (!mayBeRouted(uri)) {
+            rejectedEvents.incrementAndGet();
+            skippedDataChars.addAndGet(envelope.getDataLength());
+            return;
+        }
+
+        //Only now that someone is interested the data is worth parsing
+        Optional<JsonElement> optData = envelope.parseData();
+        if (!optData.isPresent()) return;
+        routedEvents.incrementAndGet();
+        String type = envelope.getType();
+        JsonElement data = optData.get();
         log(type + " " + uri + ": " + data);
-        new Thread(() -> {
-            mapDataManagers.values().forEach(manager -> {
-                manager.update(type, uri, data);
-            });
-        }).start();
-        new Thread(() -> {
-            objectDataManagers.values().forEach(manager -> {
-                manager.update(type, uri, data);
-            });
-        }).start();
-        new Thread(() -> {
-            arrayDataManagers.values().forEach(manager -> {
-                manager.update(type, uri, data);
-            });
-        }).start();
+        coalescer.submit(new DataEvent(type, uri, data));
+    }
+
+    private boolean mayBeRouted(String uri) {
+        return mapRoutes.mayMatch(uri) || objectRoutes.mayMatch(uri) || arrayRoutes.mayMatch(uri);
+    }
+
+    private void submitToPipeline(DataEvent event) {
+        //A URI always gets the same priority, so events for it can not overtake each other across lanes
+        if (priorityClassifier.classify(event.getUri()) == EventPriority.HIGH) {
+            highPriorityPipeline.submit(event);
+        } else {
+            bulkPipeline.submit(event);
+        }
+    }
+
+    public PriorityClassifier getPriorityClassifier() {
+        return priorityClassifier;
+    }
+
+    public EventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    private void dispatch(DataEvent event) {
+        //Events for the same URI always arrive on the same pipeline lane, so every mailbox receives them in order
+        dispatch(mapRoutes, event);
+        dispatch(objectRoutes, event);
+        dispatch(arrayRoutes, event);
+    }
+
+    private static void dispatch(UriRoutingIndex<BasicDataManager> routes, DataEvent event) {
+        //The full URI match happens on the manager's own worker
+        for (BasicDataManager manager : routes.getCandidates(event.getUri())) {
+            manager.post(event);
+        }
+    }
+
+    public JsonObject getPipelineStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("routedEvents", routedEvents.get());
+        stats.addProperty("rejectedEvents", rejectedEvents.get());
+        stats.addProperty("skippedDataChars", skippedDataChars.get());
+        stats.add("coalescer", coalescer.getStats());
+        stats.add("highPriorityPipeline", highPriorityPipeline.getStats());
+        stats.add("bulkPipeline", bulkPipeline.getStats());
+
+        JsonObject managerStats = new JsonObject();
+        mapDataManagers.values().forEach(manager -> managerStats.add(manager.getClass().getSimpleName(), manager.getStats()));
+        objectDataManagers.values().forEach(manager -> managerStats.add(manager.getClass().getSimpleName(), manager.getStats()));
+        arrayDataManagers.values().forEach(manager -> managerStats.add(manager.getClass().getSimpleName(), manager.getStats()));
+        stats.add("managers", managerStats);
+        return stats;
     }
 
     @Override
     public void start() {
         running = true;
+        highPriorityPipeline.start();
+        bulkPipeline.start();
+        coalescer.start();
         mapDataManagers.values().forEach(MapDataManager::start);
         objectDataManagers.values().forEach(ObjectDataManager::start);
         arrayDataManagers.values().forEach(ArrayDataManager::start);
@@ -118,6 +253,9 @@ public class DataManger implements Loggable, Managable {
     public void stop() {
         log("Stopping");
         running = false;
+        coalescer.stop();
+        highPriorityPipeline.stop();
+        bulkPipeline.stop();
         mapDataManagers.values().forEach(MapDataManager::stop);
         objectDataManagers.values().forEach(ObjectDataManager::stop);
         arrayDataManagers.values().forEach(ArrayDataManager::stop);
@@ -0,0 +1,109 @@
+package com.iambadatplaying.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Util;
+
+import java.util.Map;
+
+/**
+ * Structural diff between two JSON documents, expressed as RFC 6902 JSON patch.
+ * Only add, remove and replace operations are produced. Subtrees that are equal according to
+ * {@link Util#equalJsonElements(JsonElement, JsonElement)} are skipped, array elements are compared by index.
+ */
+public class JsonPatch {
+
+    public static final String KEY_OP    = "op";
+    public static final String KEY_PATH  = "path";
+    public static final String KEY_VALUE = "value";
+
+    public static final String OP_ADD     = "add";
+    public static final String OP_REMOVE  = "remove";
+    public static final String OP_REPLACE = "replace";
+
+    private JsonPatch() {}
+
+    /**
+     * @return The operations that turn source into target, empty if both are equal
+     */
+    public static JsonArray diff(JsonElement source, JsonElement target) {
+        return diff(source, target, "");
+    }
+
+    /**
+     * @param basePath JSON pointer both documents are located at, e.g. "/&lt;key&gt;" for a single map entry
+     * @return The operations that turn source into target, a null source or target means the value is absent
+     */
+    public static JsonArray diff(JsonElement source, JsonElement target, String basePath) {
+        JsonArray patch = new JsonArray();
+        if (source == null && target == null) return patch;
+        if (source == null) {
+            patch.add(createOperation(OP_ADD, basePath, target));
+        } else if (target == null) {
+            patch.add(createOperation(OP_REMOVE, basePath, null));
+        } else {
+            diff(source, target, basePath, patch);
+        }
+        return patch;
+    }
+
+    private static void diff(JsonElement source, JsonElement target, String path, JsonArray patch) {
+        if (source == target) return;
+        if (source.isJsonObject() && target.isJsonObject()) {
+            diffObjects(source.getAsJsonObject(), target.getAsJsonObject(), path, patch);
+        } else if (source.isJsonArray() && target.isJsonArray()) {
+            diffArrays(source.getAsJsonArray(), target.getAsJsonArray(), path, patch);
+        } else if (!Util.equalJsonElements(source, target)) {
+            patch.add(createOperation(OP_REPLACE, path, target));
+        }
+    }
+
+    private static void diffObjects(JsonObject source, JsonObject target, String path, JsonArray patch) {
+        for (Map.Entry<String, JsonElement> entry : source.entrySet()) {
+            if (!target.has(entry.getKey())) {
+                patch.add(createOperation(OP_REMOVE, path + "/" + escape(entry.getKey()), null));
+            }
+        }
+        for (Map.Entry<String, JsonElement> entry : target.entrySet()) {
+            String childPath = path + "/" + escape(entry.getKey());
+            JsonElement sourceValue = source.get(entry.getKey());
+            if (sourceValue == null) {
+                patch.add(createOperation(OP_ADD, childPath, entry.getValue()));
+            } else {
+                diff(sourceValue, entry.getValue(), childPath, patch);
+            }
+        }
+    }
+
+    private static void diffArrays(JsonArray source, JsonArray target, String path, JsonArray patch) {
+        if (Util.equalJsonElements(source, target)) return;
+        int common = Math.min(source.size(), target.size());
+        for (int i = 0; i < common; i++) {
+            diff(source.get(i), target.get(i), path + "/" + i, patch);
+        }
+        //Remove from the back, so the indices of the remaining elements stay valid
+        for (int i = source.size() - 1; i >= common; i--) {
+            patch.add(createOperation(OP_REMOVE, path + "/" + i, null));
+        }
+        for (int i = common; i < target.size(); i++) {
+            patch.add(createOperation(OP_ADD, path + "/-", target.get(i)));
+        }
+    }
+
+    private static JsonObject createOperation(String op, String path, JsonElement value) {
+        JsonObject operation = new JsonObject();
+        operation.addProperty(KEY_OP, op);
+        operation.addProperty(KEY_PATH, path);
+        if (!OP_REMOVE.equals(op)) operation.add(KEY_VALUE, value == null ? JsonNull.INSTANCE : value);
+        return operation;
+    }
+
+    /**
+     * Escapes a single reference token of a JSON pointer (RFC 6901)
+     */
+    public static String escape(String token) {
+        return token.replace("~", "~0").replace("/", "~1");
+    }
+}
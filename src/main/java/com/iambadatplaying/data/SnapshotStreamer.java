@@ -0,0 +1,69 @@
+package com.iambadatplaying.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.iambadatplaying.server.LocalServer;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Serializes the entries of an initial snapshot one at a time into bounded messages, the whole snapshot is never built as one document.
+ * A snapshot that fits into one chunk is sent as a single "Initial" message like before, a larger one as
+ * "Begin", one "Chunk" per group of entries and "End", all stamped with the snapshot's sequence number.
+ */
+public class SnapshotStreamer {
+
+    public static final int DEFAULT_CHUNK_BYTES = 32 * 1024;
+
+    public static final String EVENT_SUFFIX_BEGIN = "Begin";
+    public static final String EVENT_SUFFIX_CHUNK = "Chunk";
+    public static final String EVENT_SUFFIX_END   = "End";
+
+    public static final String KEY_ENTRIES = "entries";
+    public static final String KEY_CHUNKS  = "chunks";
+
+    private SnapshotStreamer() {}
+
+    /**
+     * @param eventType  Type of the single message, the markers and chunks append their suffix to it
+     * @param entries    Must not change while streaming
+     * @param chunkBytes Chunks are closed before exceeding this size, unless a single entry is larger
+     */
+    public static void stream(String eventType, long sequence, Collection<? extends Map.Entry<?, ? extends JsonElement>> entries, int chunkBytes, Consumer<String> sink) {
+        StringBuilder chunk = new StringBuilder();
+        boolean begun = false;
+        int chunks = 0;
+        for (Map.Entry<?, ? extends JsonElement> entry : entries) {
+            String member = new JsonPrimitive(String.valueOf(entry.getKey())) + ":" + entry.getValue();
+            if (chunk.length() > 0 && chunk.length() + member.length() + 1 > chunkBytes) {
+                if (!begun) {
+                    sink.accept(createMessage(eventType + EVENT_SUFFIX_BEGIN, sequence, "{\"" + KEY_ENTRIES + "\":" + entries.size() + "}"));
+                    begun = true;
+                }
+                sink.accept(createMessage(eventType + EVENT_SUFFIX_CHUNK, sequence, "{" + chunk + "}"));
+                chunks++;
+                chunk.setLength(0);
+            }
+            if (chunk.length() > 0) chunk.append(',');
+            chunk.append(member);
+        }
+
+        if (!begun) {
+            sink.accept(createMessage(eventType, sequence, "{" + chunk + "}"));
+            return;
+        }
+        if (chunk.length() > 0) {
+            sink.accept(createMessage(eventType + EVENT_SUFFIX_CHUNK, sequence, "{" + chunk + "}"));
+            chunks++;
+        }
+        sink.accept(createMessage(eventType + EVENT_SUFFIX_END, sequence, "{\"" + KEY_ENTRIES + "\":" + entries.size() + ",\"" + KEY_CHUNKS + "\":" + chunks + "}"));
+    }
+
+    private static String createMessage(String eventType, long sequence, String data) {
+        return "{\"" + LocalServer.KEY_SEQUENCE + "\":" + sequence
+                + ",\"" + BasicDataManager.KEY_EVENT_TYPE + "\":" + new JsonPrimitive(eventType)
+                + ",\"" + BasicDataManager.KEY_EVENT_DATA + "\":" + data + "}";
+    }
+}
@@ -0,0 +1,25 @@
+package com.iambadatplaying.data;
+
+import com.google.gson.JsonElement;
+
+/**
+ * The published state of a data manager at a specific version
+ */
+public class VersionedState {
+
+    private final long        version;
+    private final JsonElement state;
+
+    public VersionedState(long version, JsonElement state) {
+        this.version = version;
+        this.state = state;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public JsonElement getState() {
+        return state;
+    }
+}
@@ -1,24 +1,67 @@
 package com.iambadatplaying.data.array;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
 import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.data.JsonPatch;
 
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class ArrayDataManager extends BasicDataManager {
 
-    private AtomicReference<JsonArray> currentArray = new AtomicReference<>(new JsonArray());
+    private final AtomicReference<JsonArray> currentArray     = new AtomicReference<>(new JsonArray());
+    private       long                       currentArrayHash = Util.hashJsonElement(new JsonArray());
+    private       JsonArray                  publishedArray   = null;
 
-    protected void setCurrentArray(JsonArray array) {
+    protected synchronized void setCurrentArray(JsonArray array) {
         currentArray.set(array);
+        currentArrayHash = Util.hashJsonElement(array);
+    }
+
+    /**
+     * Sets the new array unless it is equal to the current one.
+     *
+     * @return False if the array did not change and nothing needs to be sent
+     */
+    protected synchronized boolean updateCurrentArray(JsonArray array) {
+        long newHash = Util.hashJsonElement(array);
+        boolean unchanged = newHash == currentArrayHash && Util.equalJsonElements(currentArray.get(), array);
+        recordDedupe(unchanged);
+        if (unchanged) return false;
+        currentArray.set(array);
+        currentArrayHash = newHash;
+        return true;
     }
 
     protected JsonArray getCurrentArray() {
         return currentArray.get();
     }
 
+    /**
+     * Sends the array to regular clients and its difference to the last sent array to clients that asked for deltas
+     */
+    protected synchronized void broadcastArray(JsonArray array) {
+        JsonArray patch = JsonPatch.diff(toJson(publishedArray), toJson(array));
+        publishedArray = array;
+        broadcast(getEventData(array), patch, getEventName());
+    }
+
+    private static JsonElement toJson(JsonArray array) {
+        return array == null ? JsonNull.INSTANCE : array;
+    }
+
+    /**
+     * Only what was sent to the clients, an array that was set but not sent yet is left out
+     */
+    @Override
+    protected synchronized Optional<JsonElement> getSnapshot(String key) {
+        return Optional.ofNullable(publishedArray);
+    }
+
     protected ArrayDataManager(Starter starter) {
         super(starter);
     }
@@ -28,7 +71,10 @@ public abstract class ArrayDataManager extends BasicDataManager {
         JsonArray currentArray = getCurrentArray();
         if (currentArray != null) return Optional.of(currentArray);
         Optional<JsonArray> newState = fetchCurrentState();
-        newState.ifPresent(this::setCurrentArray);
+        newState.ifPresent(state -> {
+            setCurrentArray(state);
+            sendCurrentState();
+        });
         return newState;
     }
 
@@ -37,13 +83,20 @@ public abstract class ArrayDataManager extends BasicDataManager {
     @Override
     public void stop() {
         super.stop();
-        currentArray = null;
+        synchronized (this) {
+            setCurrentArray(null);
+            publishedArray = null;
+        }
     }
 
     @Override
     public void reset() {
         if (!running) return;
-        currentArray = null;
-        sendCurrentState();
+        synchronized (this) {
+            setCurrentArray(null);
+            sendCurrentState();
+            //Managers that do not send an empty array must not hand out the old one to new clients either
+            publishedArray = null;
+        }
     }
 }
@@ -0,0 +1,45 @@
+package com.iambadatplaying.data.dispatch;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A single RC websocket event as it travels through the dispatch pipeline.
+ */
+public class DataEvent {
+    public static final String TYPE_CREATE = "Create";
+    public static final String TYPE_UPDATE = "Update";
+    public static final String TYPE_DELETE = "Delete";
+
+    private final String      type;
+    private final String      uri;
+    private final JsonElement data;
+    private final long        createdAtNanos;
+
+    public DataEvent(String type, String uri, JsonElement data) {
+        this.type = type;
+        this.uri = uri;
+        this.data = data;
+        this.createdAtNanos = System.nanoTime();
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public JsonElement getData() {
+        return data;
+    }
+
+    public long getCreatedAtNanos() {
+        return createdAtNanos;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + uri;
+    }
+}
@@ -0,0 +1,196 @@
+package com.iambadatplaying.data.dispatch;
+
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Managable;
+import com.iambadatplaying.logger.LogLevel;
+import com.iambadatplaying.logger.Loggable;
+import com.iambadatplaying.logger.SimpleLogger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Holds back Update events for a short window and only forwards the latest one per URI.
+ * Create and Delete events are never merged: they first flush a pending Update for the same URI and are then
+ * forwarded immediately, so the order of events per URI is preserved.
+ * Events matching the bypass, e.g. high priority ones, are never held back.
+ * A window of 0 disables coalescing, which is the default.
+ */
+public class EventCoalescer implements Managable, Loggable {
+
+    public static final long DEFAULT_WINDOW_MS = 0;
+
+    private final Predicate<DataEvent>   bypass;
+    private final Consumer<DataEvent>    downstream;
+    private final Map<String, DataEvent> pendingUpdates = new HashMap<>();
+    //Events ready to be forwarded in order, drained outside of the monitor
+    private final ArrayDeque<DataEvent>  outbox         = new ArrayDeque<>();
+    private       boolean                draining       = false;
+
+    private final AtomicLong received  = new AtomicLong();
+    private final AtomicLong folded    = new AtomicLong();
+    private final AtomicLong bypassed  = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+
+    private volatile long                     windowMs;
+    private volatile boolean                  running   = false;
+    private          ScheduledExecutorService scheduler = null;
+
+    public EventCoalescer(Consumer<DataEvent> downstream) {
+        this(DEFAULT_WINDOW_MS, event -> false, downstream);
+    }
+
+    /**
+     * @param bypass Events it accepts are forwarded right away, it must give the same answer for every event of a URI
+     */
+    public EventCoalescer(long windowMs, Predicate<DataEvent> bypass, Consumer<DataEvent> downstream) {
+        this.windowMs = Math.max(0, windowMs);
+        this.bypass = bypass;
+        this.downstream = downstream;
+    }
+
+    public void setWindowMs(long windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+        if (this.windowMs == 0) flushAll();
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public void submit(DataEvent event) {
+        if (!running || event == null) return;
+        received.incrementAndGet();
+        if (bypass.test(event)) {
+            //Nothing of this URI is ever pending, so it can not overtake anything
+            bypassed.incrementAndGet();
+            forward(event);
+            return;
+        }
+        String uri = event.getUri();
+        synchronized (this) {
+            if (windowMs == 0 || !DataEvent.TYPE_UPDATE.equals(event.getType())) {
+                movePending(uri);
+                outbox.offer(event);
+            } else if (pendingUpdates.put(uri, event) != null) {
+                folded.incrementAndGet();
+                return;
+            } else {
+                scheduler.schedule(() -> flush(uri), windowMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        drain();
+    }
+
+    private void flush(String uri) {
+        synchronized (this) {
+            if (!movePending(uri)) return;
+        }
+        drain();
+    }
+
+    private void flushAll() {
+        synchronized (this) {
+            outbox.addAll(pendingUpdates.values());
+            pendingUpdates.clear();
+        }
+        drain();
+    }
+
+    //Must be called while holding the monitor
+    private boolean movePending(String uri) {
+        DataEvent pending = pendingUpdates.remove(uri);
+        if (pending == null) return false;
+        outbox.offer(pending);
+        return true;
+    }
+
+    /**
+     * Forwards the outbox without holding the monitor, so a blocking downstream does not stall submitters.
+     * Only one thread drains at a time, which keeps the order the events were put into the outbox in.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) return;
+            draining = true;
+        }
+        while (true) {
+            DataEvent event;
+            synchronized (this) {
+                event = outbox.poll();
+                if (event == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            forward(event);
+        }
+    }
+
+    private void forward(DataEvent event) {
+        forwarded.incrementAndGet();
+        try {
+            downstream.accept(event);
+        } catch (Exception e) {
+            log(LogLevel.ERROR, "Failed to forward " + event + ": " + e);
+        }
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("windowMs", windowMs);
+        stats.addProperty("received", received.get());
+        stats.addProperty("folded", folded.get());
+        stats.addProperty("bypassed", bypassed.get());
+        stats.addProperty("forwarded", forwarded.get());
+        synchronized (this) {
+            stats.addProperty("pending", pendingUpdates.size());
+            stats.addProperty("outbox", outbox.size());
+        }
+        return stats;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EventCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        pendingUpdates.clear();
+        outbox.clear();
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void log(Object o) {
+        log(LogLevel.DEBUG, o);
+    }
+
+    @Override
+    public void log(LogLevel level, Object o) {
+        SimpleLogger.getInstance().log(level, this.getClass().getSimpleName() + ": " + o);
+    }
+}
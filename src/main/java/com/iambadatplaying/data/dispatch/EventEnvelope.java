@@ -0,0 +1,250 @@
+package com.iambadatplaying.data.dispatch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.iambadatplaying.Util;
+
+import java.util.Optional;
+
+/**
+ * Envelope of an RC websocket frame of the form {@code [8, "OnJsonApiEvent", {"data": ..., "eventType": ..., "uri": ...}]}.
+ * <p>
+ * Only {@code eventType} and {@code uri} are decoded while scanning, the {@code data} value is skipped and just
+ * remembered by its position in the frame. It is parsed on demand via {@link #parseData()}, so frames nobody is
+ * interested in never build a Gson tree.
+ */
+public class EventEnvelope {
+
+    private static final String KEY_EVENT_TYPE = "eventType";
+    private static final String KEY_URI        = "uri";
+    private static final String KEY_DATA       = "data";
+
+    private final String frame;
+    private final String type;
+    private final String uri;
+    private final int    dataStart;
+    private final int    dataEnd;
+
+    private EventEnvelope(String frame, String type, String uri, int dataStart, int dataEnd) {
+        this.frame = frame;
+        this.type = type;
+        this.uri = uri;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+    }
+
+    public static Optional<EventEnvelope> read(String frame) {
+        if (frame == null) return Optional.empty();
+        try {
+            return Optional.ofNullable(new Scanner(frame).scanEnvelope());
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public int getDataLength() {
+        return dataEnd - dataStart;
+    }
+
+    /**
+     * @return The parsed data value, {@link JsonNull} if the event has no data and empty if the data is malformed
+     */
+    public Optional<JsonElement> parseData() {
+        if (dataStart < 0) return Optional.of(JsonNull.INSTANCE);
+        return Util.parseJson(frame.substring(dataStart, dataEnd));
+    }
+
+    private static class Scanner {
+        private final String s;
+        private       int    pos = 0;
+
+        private Scanner(String s) {
+            this.s = s;
+        }
+
+        private EventEnvelope scanEnvelope() {
+            expect('[');
+            skipValue();
+            expect(',');
+            skipValue();
+            expect(',');
+            expect('{');
+
+            String type = null;
+            String uri = null;
+            int dataStart = -1;
+            int dataEnd = -1;
+
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = readString();
+                    expect(':');
+                    skipWhitespace();
+                    switch (key) {
+                        case KEY_EVENT_TYPE:
+                            type = readPrimitiveAsString();
+                            break;
+                        case KEY_URI:
+                            uri = readPrimitiveAsString();
+                            break;
+                        case KEY_DATA:
+                            dataStart = pos;
+                            skipValue();
+                            dataEnd = pos;
+                            break;
+                        default:
+                            skipValue();
+                            break;
+                    }
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}') break;
+                    if (c != ',') throw new IllegalArgumentException("Unexpected character " + c + " at " + (pos - 1));
+                }
+            }
+            expect(']');
+
+            if (type == null || uri == null) return null;
+            return new EventEnvelope(s, type.trim(), uri.trim(), dataStart, dataEnd);
+        }
+
+        private char peek() {
+            return s.charAt(pos);
+        }
+
+        private char next() {
+            return s.charAt(pos++);
+        }
+
+        private void skipWhitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private void expect(char expected) {
+            skipWhitespace();
+            char c = next();
+            if (c != expected) throw new IllegalArgumentException("Expected " + expected + " but got " + c + " at " + (pos - 1));
+        }
+
+        private String readPrimitiveAsString() {
+            char c = peek();
+            if (c == '"') return readString();
+            if (c == '{' || c == '[') throw new IllegalArgumentException("Expected primitive at " + pos);
+            int start = pos;
+            skipLiteral();
+            String literal = s.substring(start, pos);
+            //Mirrors JsonElement#getAsString, which is not supported for null
+            if ("null".equals(literal)) return null;
+            return literal;
+        }
+
+        private String readString() {
+            skipWhitespace();
+            if (next() != '"') throw new IllegalArgumentException("Expected string at " + (pos - 1));
+            StringBuilder sb = null;
+            int start = pos;
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    if (sb == null) return s.substring(start, pos - 1);
+                    return sb.append(s, start, pos - 1).toString();
+                }
+                if (c != '\\') continue;
+                if (sb == null) sb = new StringBuilder();
+                sb.append(s, start, pos - 1);
+                char escaped = next();
+                switch (escaped) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                        break;
+                }
+                start = pos;
+            }
+        }
+
+        private void skipString() {
+            if (next() != '"') throw new IllegalArgumentException("Expected string at " + (pos - 1));
+            while (true) {
+                char c = next();
+                if (c == '"') return;
+                if (c == '\\') pos++;
+            }
+        }
+
+        private void skipLiteral() {
+            int start = pos;
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+                pos++;
+            }
+            if (pos == start) throw new IllegalArgumentException("Expected value at " + pos);
+        }
+
+        private void skipValue() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '"') {
+                skipString();
+                return;
+            }
+            if (c != '{' && c != '[') {
+                skipLiteral();
+                return;
+            }
+
+            int depth = 0;
+            while (true) {
+                c = peek();
+                switch (c) {
+                    case '"':
+                        skipString();
+                        continue;
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+                pos++;
+                if (depth == 0) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.iambadatplaying.data.dispatch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Managable;
+import com.iambadatplaying.logger.LogLevel;
+import com.iambadatplaying.logger.Loggable;
+import com.iambadatplaying.logger.SimpleLogger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Bounded, ordered stage between the RC websocket and the data managers.
+ * Events are spread over a fixed set of lanes by their key (the URI by default). Every lane is a fixed size ring
+ * buffer drained by its own worker, so events with the same key are delivered strictly in submission order while
+ * events with different keys are processed in parallel.
+ */
+public class EventPipeline implements Managable, Loggable {
+
+    public static final int            DEFAULT_CAPACITY        = 4096;
+    public static final int            DEFAULT_LANE_COUNT      = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    private final String                      name;
+    private final OverflowPolicy              overflowPolicy;
+    private final Consumer<DataEvent>         consumer;
+    private final Function<DataEvent, String> keyExtractor;
+    private final Lane[]                      lanes;
+
+    private final AtomicLong submitted  = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped    = new AtomicLong();
+    private final AtomicLong coalesced  = new AtomicLong();
+    private final AtomicLong failed     = new AtomicLong();
+
+    private final AtomicLong totalLagNanos        = new AtomicLong();
+    private final AtomicLong maxLagNanos          = new AtomicLong();
+    private final AtomicLong totalProcessingNanos = new AtomicLong();
+    private final AtomicLong maxProcessingNanos   = new AtomicLong();
+    private final LatencyHistogram lagHistogram   = new LatencyHistogram();
+
+    private volatile boolean running        = false;
+    private volatile long    startedAtNanos = 0;
+
+    public EventPipeline(String name, Consumer<DataEvent> consumer) {
+        this(name, DEFAULT_LANE_COUNT, DEFAULT_CAPACITY, DEFAULT_OVERFLOW_POLICY, DataEvent::getUri, consumer);
+    }
+
+    /**
+     * @param laneCount    Number of workers, events with the same key always end up on the same one
+     * @param capacity     Capacity of every single lane
+     * @param keyExtractor Determines which events have to stay in order relative to each other
+     */
+    public EventPipeline(String name, int laneCount, int capacity, OverflowPolicy overflowPolicy, Function<DataEvent, String> keyExtractor, Consumer<DataEvent> consumer) {
+        if (laneCount <= 0) throw new IllegalArgumentException("Lane count must be positive");
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this.name = name;
+        this.overflowPolicy = overflowPolicy;
+        this.keyExtractor = keyExtractor;
+        this.consumer = consumer;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, capacity);
+        }
+    }
+
+    public void submit(DataEvent event) {
+        if (!running || event == null) return;
+        submitted.incrementAndGet();
+        String key = keyExtractor.apply(event);
+        int laneIndex = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+        lanes[laneIndex].submit(event);
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.getDepth();
+        }
+        return depth;
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        long elapsedNanos = running ? System.nanoTime() - startedAtNanos : 0;
+        double seconds = elapsedNanos / 1_000_000_000d;
+        stats.addProperty("name", name);
+        stats.addProperty("running", running);
+        stats.addProperty("lanes", lanes.length);
+        stats.addProperty("laneCapacity", lanes[0].ring.length);
+        stats.addProperty("overflowPolicy", overflowPolicy.name());
+        stats.addProperty("queueDepth", getQueueDepth());
+        stats.addProperty("submitted", submitted.get());
+        stats.addProperty("dispatched", dispatched.get());
+        stats.addProperty("dropped", dropped.get());
+        stats.addProperty("coalesced", coalesced.get());
+        stats.addProperty("failed", failed.get());
+        stats.addProperty("dispatchedPerSecond", seconds > 0 ? dispatched.get() / seconds : 0);
+        long dispatchedCount = dispatched.get();
+        stats.addProperty("avgLagMs", dispatchedCount == 0 ? 0 : totalLagNanos.get() / dispatchedCount / 1_000_000d);
+        stats.addProperty("maxLagMs", maxLagNanos.get() / 1_000_000d);
+        stats.addProperty("avgProcessingMs", dispatchedCount == 0 ? 0 : totalProcessingNanos.get() / dispatchedCount / 1_000_000d);
+        stats.addProperty("maxProcessingMs", maxProcessingNanos.get() / 1_000_000d);
+        stats.add("lagHistogram", lagHistogram.toJson());
+
+        JsonArray laneStats = new JsonArray();
+        for (Lane lane : lanes) {
+            JsonObject laneStat = new JsonObject();
+            laneStat.addProperty("queueDepth", lane.getDepth());
+            laneStat.addProperty("highWatermark", lane.highWatermark);
+            laneStats.add(laneStat);
+        }
+        stats.add("laneStats", laneStats);
+        return stats;
+    }
+
+    private static void recordMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        startedAtNanos = System.nanoTime();
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        for (Lane lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void log(Object o) {
+        log(LogLevel.DEBUG, o);
+    }
+
+    @Override
+    public void log(LogLevel level, Object o) {
+        SimpleLogger.getInstance().log(level, this.getClass().getSimpleName() + "[" + name + "]: " + o);
+    }
+
+    private class Lane {
+        private final int         index;
+        private final DataEvent[] ring;
+        private       int         head          = 0;
+        private       int         count         = 0;
+        private volatile int      highWatermark = 0;
+
+        private final ReentrantLock lock     = new ReentrantLock();
+        private final Condition     notEmpty = lock.newCondition();
+        private final Condition     notFull  = lock.newCondition();
+
+        //Replaced on every start, a worker whose thread is no longer this one exits
+        private volatile Thread worker = null;
+
+        private Lane(int index, int capacity) {
+            this.index = index;
+            this.ring = new DataEvent[capacity];
+        }
+
+        private void submit(DataEvent event) {
+            lock.lock();
+            try {
+                while (count == ring.length) {
+                    switch (overflowPolicy) {
+                        case BLOCK:
+                            if (!awaitNotFull()) return;
+                            break;
+                        case COALESCE:
+                            if (coalesce(event)) return;
+                            //Creates and Deletes change which entities exist, losing one would leave the managers out of sync for good
+                            if (dropOldestUpdate()) break;
+                            if (!awaitNotFull()) return;
+                            break;
+                        case DROP_OLDEST:
+                        default:
+                            dropOldest();
+                            break;
+                    }
+                }
+                int tail = (head + count) % ring.length;
+                ring[tail] = event;
+                count++;
+                if (count > highWatermark) highWatermark = count;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Must be called while holding the lock
+        private boolean coalesce(DataEvent event) {
+            if (!DataEvent.TYPE_UPDATE.equals(event.getType())) return false;
+            for (int i = count - 1; i >= 0; i--) {
+                int index = (head + i) % ring.length;
+                DataEvent pending = ring[index];
+                if (!event.getUri().equals(pending.getUri())) continue;
+                //An older Create or Delete for this URI must not be overtaken
+                if (!DataEvent.TYPE_UPDATE.equals(pending.getType())) return false;
+                ring[index] = event;
+                coalesced.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        //Must be called while holding the lock, false if the event has to be dropped instead
+        private boolean awaitNotFull() {
+            if (!running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            try {
+                notFull.await(100, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        //Must be called while holding the lock, false if there is no pending Update
+        private boolean dropOldestUpdate() {
+            for (int i = 0; i < count; i++) {
+                if (!DataEvent.TYPE_UPDATE.equals(ring[(head + i) % ring.length].getType())) continue;
+                for (int j = i; j < count - 1; j++) {
+                    ring[(head + j) % ring.length] = ring[(head + j + 1) % ring.length];
+                }
+                ring[(head + count - 1) % ring.length] = null;
+                count--;
+                dropped.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        //Must be called while holding the lock
+        private void dropOldest() {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            dropped.incrementAndGet();
+        }
+
+        private DataEvent take() throws InterruptedException {
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (!running || worker != Thread.currentThread()) return null;
+                    notEmpty.await();
+                }
+                DataEvent event = ring[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                count--;
+                notFull.signal();
+                return event;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void runWorker() {
+            while (running && worker == Thread.currentThread()) {
+                DataEvent event;
+                try {
+                    event = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (event == null) return;
+                long startNanos = System.nanoTime();
+                //Lag is the age of the event when its processing starts
+                long lagNanos = startNanos - event.getCreatedAtNanos();
+                recordMax(maxLagNanos, lagNanos);
+                totalLagNanos.addAndGet(lagNanos);
+                lagHistogram.record(lagNanos);
+                try {
+                    consumer.accept(event);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    log(LogLevel.ERROR, "Failed to dispatch " + event + ": " + e);
+                }
+                long processingNanos = System.nanoTime() - startNanos;
+                recordMax(maxProcessingNanos, processingNanos);
+                totalProcessingNanos.addAndGet(processingNanos);
+                dispatched.incrementAndGet();
+            }
+        }
+
+        private int getDepth() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void start() {
+            worker = new Thread(this::runWorker, name + "-lane-" + index);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        private void stop() {
+            lock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    int index = (head + i) % ring.length;
+                    ring[index] = null;
+                }
+                head = 0;
+                count = 0;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            Thread stoppedWorker = worker;
+            worker = null;
+            if (stoppedWorker == null) return;
+            stoppedWorker.interrupt();
+            //A restart must not let the old worker process events next to the new one
+            if (stoppedWorker == Thread.currentThread()) return;
+            try {
+                stoppedWorker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.iambadatplaying.data.dispatch;
+
+public enum EventPriority {
+    /** Events the UI is actively waiting for, e.g. authentication and session changes */
+    HIGH,
+    /** Everything else */
+    BULK
+}
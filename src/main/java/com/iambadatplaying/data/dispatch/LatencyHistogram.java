@@ -0,0 +1,69 @@
+package com.iambadatplaying.data.dispatch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with power of two microsecond buckets.
+ * Bucket {@code i} counts values below {@code 2^i} microseconds, the last bucket collects everything above.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 24;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Upper bound of the bucket the percentile falls into, in milliseconds
+     */
+    public double getPercentileMs(double percentile) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long threshold = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold) return getUpperBoundMicros(i) / 1000d;
+        }
+        return getUpperBoundMicros(BUCKET_COUNT - 1) / 1000d;
+    }
+
+    private static long getUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", getCount());
+        json.addProperty("p50Ms", getPercentileMs(0.5));
+        json.addProperty("p90Ms", getPercentileMs(0.9));
+        json.addProperty("p99Ms", getPercentileMs(0.99));
+        JsonArray bucketArray = new JsonArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long value = buckets.get(i);
+            if (value == 0) continue;
+            JsonObject bucket = new JsonObject();
+            bucket.addProperty("belowMs", getUpperBoundMicros(i) / 1000d);
+            bucket.addProperty("count", value);
+            bucketArray.add(bucket);
+        }
+        json.add("buckets", bucketArray);
+        return json;
+    }
+}
@@ -0,0 +1,10 @@
+package com.iambadatplaying.data.dispatch;
+
+public enum OverflowPolicy {
+    /** The submitting thread waits until there is room again */
+    BLOCK,
+    /** The oldest pending event is discarded to make room */
+    DROP_OLDEST,
+    /** A pending Update for the same URI is replaced, otherwise the oldest pending Update is discarded. Creates and Deletes are never discarded, the submitting thread waits if nothing else is left */
+    COALESCE
+}
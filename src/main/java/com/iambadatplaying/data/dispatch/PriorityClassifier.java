@@ -0,0 +1,49 @@
+package com.iambadatplaying.data.dispatch;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Assigns an {@link EventPriority} to URIs based on a configurable list of high priority URI prefixes.
+ */
+public class PriorityClassifier {
+
+    public static final List<String> DEFAULT_HIGH_PRIORITY_PREFIXES = Arrays.asList(
+            "/rso-authenticator/",
+            "/product-session/",
+            "/riotclient/"
+    );
+
+    private final List<String> highPriorityPrefixes;
+
+    public PriorityClassifier() {
+        this(DEFAULT_HIGH_PRIORITY_PREFIXES);
+    }
+
+    public PriorityClassifier(Collection<String> highPriorityPrefixes) {
+        this.highPriorityPrefixes = new CopyOnWriteArrayList<>(highPriorityPrefixes);
+    }
+
+    public void addHighPriorityPrefix(String prefix) {
+        if (prefix == null || highPriorityPrefixes.contains(prefix)) return;
+        highPriorityPrefixes.add(prefix);
+    }
+
+    public void removeHighPriorityPrefix(String prefix) {
+        highPriorityPrefixes.remove(prefix);
+    }
+
+    public List<String> getHighPriorityPrefixes() {
+        return highPriorityPrefixes;
+    }
+
+    public EventPriority classify(String uri) {
+        if (uri == null) return EventPriority.BULK;
+        for (String prefix : highPriorityPrefixes) {
+            if (uri.startsWith(prefix)) return EventPriority.HIGH;
+        }
+        return EventPriority.BULK;
+    }
+}
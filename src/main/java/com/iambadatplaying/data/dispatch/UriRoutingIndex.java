@@ -0,0 +1,145 @@
+package com.iambadatplaying.data.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Maps URIs to the targets whose URI pattern matches them.
+ * The static literal prefix of every pattern is stored in a character trie, the regex is only evaluated
+ * for targets whose prefix matches the URI. URIs that walk off the trie without passing a target are rejected
+ * without running any regex at all.
+ * <p>
+ * Targets are expected to be registered before the index is queried concurrently.
+ */
+public class UriRoutingIndex<T> {
+
+    private static final String REGEX_META_CHARACTERS = ".[]{}()*+?^$|\\";
+    private static final String REGEX_QUANTIFIERS     = "*+?{";
+
+    private static class Entry<T> {
+        private final Pattern pattern;
+        private final T       target;
+
+        private Entry(Pattern pattern, T target) {
+            this.pattern = pattern;
+            this.target = target;
+        }
+    }
+
+    private static class Node<T> {
+        private final Map<Character, Node<T>> children = new HashMap<>();
+        private final List<Entry<T>>          entries  = new ArrayList<>();
+    }
+
+    private final Node<T> root = new Node<>();
+    private       int     size = 0;
+
+    /**
+     * Extracts the part of a regex that every matching input has to start with.
+     *
+     * @param regex The regex to analyse
+     * @return The literal prefix, may be empty if the regex starts with a non-literal construct
+     */
+    public static String getLiteralPrefix(String regex) {
+        if (regex == null) return "";
+        //Alternations make the prefix ambiguous, those patterns are checked for every URI
+        if (hasUnescapedAlternation(regex)) return "";
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int literalLength;
+            char literal;
+            if (c == '\\') {
+                if (i + 1 >= regex.length()) break;
+                char escaped = regex.charAt(i + 1);
+                //Escaped letters and digits are character classes or back references (\d, \w, \1, ...)
+                if (Character.isLetterOrDigit(escaped)) break;
+                literal = escaped;
+                literalLength = 2;
+            } else if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                literalLength = 1;
+            }
+
+            int next = i + literalLength;
+            //A quantified character may be absent or repeated, so it can not be part of the prefix
+            if (next < regex.length() && REGEX_QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) break;
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasUnescapedAlternation(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '|') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(Pattern pattern, T target) {
+        if (pattern == null || target == null) return;
+        //Flags like CASE_INSENSITIVE or LITERAL change what the prefix matches, those patterns are checked for every URI
+        String prefix = pattern.flags() == 0 ? getLiteralPrefix(pattern.pattern()) : "";
+        Node<T> node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node<>());
+        }
+        node.entries.add(new Entry<>(pattern, target));
+        size++;
+    }
+
+    /**
+     * Cheap check without any regex evaluation.
+     *
+     * @return False if no registered target can possibly match the URI
+     */
+    public boolean mayMatch(String uri) {
+        if (uri == null) return false;
+        Node<T> node = root;
+        if (!node.entries.isEmpty()) return true;
+        for (int i = 0; i < uri.length(); i++) {
+            node = node.children.get(uri.charAt(i));
+            if (node == null) return false;
+            if (!node.entries.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects the targets whose literal prefix matches the URI without evaluating any regex.
+     * The caller is responsible for the full match, e.g. because it happens on another thread anyway.
+     */
+    public List<T> getCandidates(String uri) {
+        if (uri == null) return Collections.emptyList();
+        List<T> candidates = null;
+        Node<T> node = root;
+        int i = 0;
+        while (node != null) {
+            for (Entry<T> entry : node.entries) {
+                if (candidates == null) candidates = new ArrayList<>(2);
+                candidates.add(entry.target);
+            }
+            if (i >= uri.length()) break;
+            node = node.children.get(uri.charAt(i++));
+        }
+        return candidates == null ? Collections.emptyList() : candidates;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,180 @@
+package com.iambadatplaying.data.map;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A {@link PersistentHashMap} behind an atomic reference. Readers take consistent snapshots without locking,
+ * writers build the new map from the current one and publish it with a compare-and-set.
+ * Every change increments the version, writes that leave the map as it was do not.
+ * <p>
+ * Secondary indexes group the entries by an attribute of their values, they are part of the snapshot
+ * and therefore always match the entries of the same version. The attribute is remembered per key, so a value
+ * that was modified in place is moved to its new group the next time it is put.
+ */
+public class AtomicVersionedMap<K, V> {
+
+    private static final class Index<K, V> {
+        //Attribute value to the entries having it
+        private final PersistentHashMap<Object, PersistentHashMap<K, V>> buckets;
+        //Key to the attribute its value was indexed under
+        private final PersistentHashMap<K, Object>                       attributes;
+
+        private Index(PersistentHashMap<Object, PersistentHashMap<K, V>> buckets, PersistentHashMap<K, Object> attributes) {
+            this.buckets = buckets;
+            this.attributes = attributes;
+        }
+
+        private static <K, V> Index<K, V> empty() {
+            return new Index<>(PersistentHashMap.empty(), PersistentHashMap.empty());
+        }
+
+        private Index<K, V> minus(K key) {
+            Object attribute = attributes.get(key);
+            if (attribute == null) return this;
+            PersistentHashMap<K, V> bucket = buckets.get(attribute).minus(key);
+            return new Index<>(bucket.isEmpty() ? buckets.minus(attribute) : buckets.plus(attribute, bucket), attributes.minus(key));
+        }
+
+        //A null value removes the key, returns this index if nothing changed
+        private Index<K, V> update(K key, V value, Optional<?> attribute) {
+            Object previousAttribute = attributes.get(key);
+            boolean unchanged = value != null && Objects.equals(previousAttribute, attribute.orElse(null))
+                    && (previousAttribute == null || buckets.get(previousAttribute).get(key) == value);
+            if (unchanged) return this;
+            Index<K, V> withoutKey = minus(key);
+            return value == null ? withoutKey : withoutKey.plus(key, value, attribute);
+        }
+
+        private Index<K, V> plus(K key, V value, Optional<?> attribute) {
+            if (!attribute.isPresent()) return this;
+            PersistentHashMap<K, V> bucket = buckets.get(attribute.get());
+            if (bucket == null) bucket = PersistentHashMap.empty();
+            return new Index<>(buckets.plus(attribute.get(), bucket.plus(key, value)), attributes.plus(key, attribute.get()));
+        }
+    }
+
+    public static final class Snapshot<K, V> {
+        private final long                                   version;
+        private final PersistentHashMap<K, V>                map;
+        private final PersistentHashMap<String, Index<K, V>> indexes;
+
+        private Snapshot(long version, PersistentHashMap<K, V> map, PersistentHashMap<String, Index<K, V>> indexes) {
+            this.version = version;
+            this.map = map;
+            this.indexes = indexes;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public PersistentHashMap<K, V> getMap() {
+            return map;
+        }
+
+        /**
+         * @return The entries whose indexed attribute equals the value, empty if there are none or the index does not exist
+         */
+        public PersistentHashMap<K, V> lookup(String index, Object value) {
+            Index<K, V> entries = indexes.get(index);
+            if (entries == null || value == null) return PersistentHashMap.empty();
+            PersistentHashMap<K, V> bucket = entries.buckets.get(value);
+            return bucket == null ? PersistentHashMap.empty() : bucket;
+        }
+    }
+
+    private final AtomicReference<Snapshot<K, V>>                current    = new AtomicReference<>(new Snapshot<>(0, PersistentHashMap.empty(), PersistentHashMap.empty()));
+    private final Map<String, Function<? super V, Optional<?>>> extractors = new ConcurrentHashMap<>();
+
+    public Snapshot<K, V> snapshot() {
+        return current.get();
+    }
+
+    public PersistentHashMap<K, V> getMap() {
+        return current.get().map;
+    }
+
+    public long getVersion() {
+        return current.get().version;
+    }
+
+    public V get(K key) {
+        return current.get().map.get(key);
+    }
+
+    /**
+     * Adds an index over the attribute the extractor returns, entries already stored are indexed right away.
+     * The extractor may run more than once per write under contention and must not have side effects.
+     */
+    public void addIndex(String name, Function<? super V, Optional<?>> extractor) {
+        if (extractors.putIfAbsent(name, extractor) != null) throw new IllegalArgumentException("Index " + name + " already exists");
+        while (true) {
+            Snapshot<K, V> snapshot = current.get();
+            Index<K, V> index = Index.empty();
+            for (Map.Entry<K, V> entry : snapshot.map.entrySet()) {
+                index = index.plus(entry.getKey(), entry.getValue(), extractor.apply(entry.getValue()));
+            }
+            //Same version, the entries did not change
+            Snapshot<K, V> newSnapshot = new Snapshot<>(snapshot.version, snapshot.map, snapshot.indexes.plus(name, index));
+            if (current.compareAndSet(snapshot, newSnapshot)) return;
+        }
+    }
+
+    /**
+     * @return The entries whose indexed attribute equals the value, taken from the current snapshot
+     */
+    public PersistentHashMap<K, V> lookup(String index, Object value) {
+        return current.get().lookup(index, value);
+    }
+
+    /**
+     * @return The previous value, null if there was none
+     */
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        return update(key, value);
+    }
+
+    /**
+     * @return The removed value, null if there was none
+     */
+    public V remove(K key) {
+        return update(key, null);
+    }
+
+    public void clear() {
+        while (true) {
+            Snapshot<K, V> snapshot = current.get();
+            if (snapshot.map.isEmpty()) return;
+            PersistentHashMap<String, Index<K, V>> indexes = PersistentHashMap.empty();
+            for (String name : snapshot.indexes.keySet()) {
+                indexes = indexes.plus(name, Index.empty());
+            }
+            if (current.compareAndSet(snapshot, new Snapshot<>(snapshot.version + 1, PersistentHashMap.empty(), indexes))) return;
+        }
+    }
+
+    //A null value removes the key
+    private V update(K key, V value) {
+        while (true) {
+            Snapshot<K, V> snapshot = current.get();
+            V previous = snapshot.map.get(key);
+            PersistentHashMap<K, V> newMap = value == null ? snapshot.map.minus(key) : snapshot.map.plus(key, value);
+            PersistentHashMap<String, Index<K, V>> indexes = snapshot.indexes;
+            for (Map.Entry<String, Index<K, V>> index : snapshot.indexes.entrySet()) {
+                //The previous attribute is taken from the index, the stored value may have been modified since
+                Optional<?> attribute = value == null ? Optional.empty() : extractors.get(index.getKey()).apply(value);
+                Index<K, V> updated = index.getValue().update(key, value, attribute);
+                if (updated != index.getValue()) indexes = indexes.plus(index.getKey(), updated);
+            }
+            //Putting the same instance again only changes something if it was modified in place
+            if (newMap == snapshot.map && indexes == snapshot.indexes) return previous;
+            if (current.compareAndSet(snapshot, new Snapshot<>(snapshot.version + 1, newMap, indexes))) return previous;
+        }
+    }
+}
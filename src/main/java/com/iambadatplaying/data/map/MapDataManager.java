@@ -4,15 +4,24 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
 import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.data.JsonPatch;
+import com.iambadatplaying.server.TopicIndex;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 public abstract class MapDataManager<T> extends BasicDataManager {
+    public static final String KEY_KEY   = "key";
+    public static final String KEY_VALUE = "value";
+
+    //Every key has its own URI, so updates of different keys are processed in parallel
+    public static final int DEFAULT_MAILBOX_LANE_COUNT = 4;
 
     public static <T> Map<T, JsonObject> getMapFromArray(JsonArray array, String identifier, Function<JsonElement, T> keyMapper) {
         Map<T, JsonObject> map = new HashMap<>();
@@ -26,43 +35,167 @@ public abstract class MapDataManager<T> extends BasicDataManager {
         return map;
     }
 
-    protected final Map<T, JsonObject> map;
+    //Written under the manager's lock together with the hashes, read without any lock
+    private final AtomicVersionedMap<T, JsonObject> entries = new AtomicVersionedMap<>();
+    private final Map<T, Long>                      hashes;
+    //Values as last sent to the clients, snapshots are taken and patches are computed against these
+    private       PersistentHashMap<T, JsonObject>  publishedValues = PersistentHashMap.empty();
 
     protected MapDataManager(Starter starter) {
-        super(starter);
-        map = Collections.synchronizedMap(new HashMap<>());
+        super(starter, DEFAULT_MAILBOX_LANE_COUNT, DEFAULT_MAILBOX_CAPACITY, DEFAULT_MAILBOX_OVERFLOW_POLICY);
+        hashes = new ConcurrentHashMap<>();
     }
 
     public Optional<JsonObject> get(T key) {
-        if (map.containsKey(key)) return Optional.ofNullable(map.get(key));
+        JsonObject stored = entries.get(key);
+        if (stored != null) return Optional.of(stored);
         Optional<JsonObject> value = load(key);
-        value.ifPresent(jsonObject -> map.put(key, jsonObject));
+        value.ifPresent(jsonObject -> putEntry(key, jsonObject));
         return value;
     }
 
-    public abstract Optional<JsonObject> getExternal(String key);
+    /**
+     * @return An immutable, consistent snapshot of all entries, taken without locking
+     */
+    protected Map<T, JsonObject> getEntries() {
+        return entries.getMap();
+    }
 
-    public abstract Optional<JsonObject> load(T key);
+    /**
+     * Registers a secondary index, it is kept up to date on every change of the entries.
+     * Meant to be called from the constructor of a subclass.
+     *
+     * @param extractor Returns the indexed attribute of a value, empty to leave the value out of the index
+     */
+    protected void addIndex(String name, Function<JsonObject, Optional<?>> extractor) {
+        entries.addIndex(name, extractor);
+    }
 
-    public abstract String getSingleKeyUpdateEventName();
+    /**
+     * @return An immutable snapshot of the entries whose indexed attribute equals the value, taken without locking
+     */
+    protected Map<T, JsonObject> getEntriesBy(String index, Object value) {
+        return entries.lookup(index, value);
+    }
 
-    public JsonObject getMapAsJson() {
+    /**
+     * @return Incremented on every change of the entries, unlike {@link #getVersion()} also for changes not sent yet
+     */
+    public long getEntriesVersion() {
+        return entries.getVersion();
+    }
+
+    protected synchronized void putEntry(T key, JsonObject value) {
+        entries.put(key, value);
+        hashes.put(key, Util.hashJsonElement(value));
+    }
+
+    /**
+     * Stores the value unless the key already holds an equal one.
+     *
+     * @return False if the stored value did not change
+     */
+    protected synchronized boolean putEntryIfChanged(T key, JsonObject value) {
+        long newHash = Util.hashJsonElement(value);
+        Long oldHash = hashes.get(key);
+        boolean unchanged = oldHash != null && oldHash == newHash && Util.equalJsonElements(entries.get(key), value);
+        recordDedupe(unchanged);
+        if (unchanged) return false;
+        entries.put(key, value);
+        hashes.put(key, newHash);
+        return true;
+    }
+
+    protected synchronized void removeEntry(T key) {
+        entries.remove(key);
+        hashes.remove(key);
+    }
+
+    protected synchronized void clearEntries() {
+        entries.clear();
+        hashes.clear();
+    }
+
+    /**
+     * Sends a single changed key to the clients subscribed to the whole map or to just this key
+     *
+     * @param value The new value, null if the key was removed
+     */
+    protected synchronized void broadcastKeyUpdate(T key, JsonObject value) {
+        String keyString = key.toString();
+        JsonObject data = new JsonObject();
+        data.addProperty(KEY_KEY, keyString);
+        data.add(KEY_VALUE, value);
+        JsonObject event = new JsonObject();
+        event.addProperty(KEY_EVENT_TYPE, getSingleKeyUpdateEventName());
+        event.add(KEY_EVENT_DATA, data);
+
+        JsonObject previous = publishedValues.get(key);
+        publishedValues = value == null ? publishedValues.minus(key) : publishedValues.plus(key, value);
+        JsonArray patch = JsonPatch.diff(previous, value, "/" + JsonPatch.escape(keyString));
+        broadcast(event, patch, getEventName(), TopicIndex.getKeyTopic(getEventName(), keyString));
+    }
+
+    /**
+     * Sends the whole map to regular clients and its difference to the last sent map to clients that asked for deltas
+     */
+    protected synchronized void broadcastMap() {
+        PersistentHashMap<T, JsonObject> current = entries.getMap();
+        JsonObject currentJson = toJson(current);
+        JsonArray patch = JsonPatch.diff(toJson(publishedValues), currentJson);
+        publishedValues = current;
+        broadcast(getEventData(currentJson), patch, getEventName());
+    }
+
+    private static <T> JsonObject toJson(Map<T, JsonObject> values) {
         JsonObject mapAsJson = new JsonObject();
-        for (Map.Entry<T, JsonObject> entry : map.entrySet()) {
+        for (Map.Entry<T, JsonObject> entry : values.entrySet()) {
             mapAsJson.add(entry.getKey().toString(), entry.getValue());
         }
         return mapAsJson;
     }
 
+    /**
+     * Entries that were loaded but not sent yet are left out, the next patches are relative to what the clients received.
+     * The returned entries belong to an immutable map, so they are serialized after the lock was released.
+     */
+    @Override
+    protected synchronized Optional<Set<Map.Entry<T, JsonObject>>> getSnapshotEntries() {
+        return Optional.of(publishedValues.entrySet());
+    }
+
+    @Override
+    protected synchronized Optional<JsonElement> getSnapshot(String key) {
+        if (key == null) return Optional.of(toJson(publishedValues));
+        JsonObject snapshot = new JsonObject();
+        parseKey(key).map(publishedValues::get).ifPresent(value -> snapshot.add(key, value));
+        return Optional.of(snapshot);
+    }
+
+    /**
+     * @return The key clients address by the given string, empty if no key can have it as string form
+     */
+    protected abstract Optional<T> parseKey(String key);
+
+    public abstract Optional<JsonObject> getExternal(String key);
+
+    public abstract Optional<JsonObject> load(T key);
+
+    public abstract String getSingleKeyUpdateEventName();
+
+    public JsonObject getMapAsJson() {
+        return toJson(entries.getMap());
+    }
+
     @Override
     public void reset() {
-        map.clear();
+        clearEntries();
         sendCurrentState();
     }
 
     @Override
     public void stop() {
         super.stop();
-        map.clear();
+        clearEntries();
     }
 }
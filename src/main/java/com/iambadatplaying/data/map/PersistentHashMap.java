@@ -0,0 +1,335 @@
+package com.iambadatplaying.data.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable hash array mapped trie. {@link #plus(Object, Object)} and {@link #minus(Object)} return a new map
+ * that shares every untouched node with this one, so a write copies only the path to the changed entry.
+ * Keys and values must not be null, the {@link Map} mutators are not supported.
+ */
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS      = 5;
+    private static final int MASK      = (1 << BITS) - 1;
+    //Seven bitmap levels consume the 32 bit hash, a collision node may follow
+    private static final int MAX_DEPTH = 8;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node root;
+    private final int  size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public static <K, V> PersistentHashMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+        PersistentHashMap<K, V> result = empty();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            result = result.plus(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null || key == null) return null;
+        return (V) root.find(0, hash(key), key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A map with the key set to the value, this map if it already held the same value instance
+     */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        boolean[] addedLeaf = new boolean[1];
+        Node newRoot = (root == null ? BitmapNode.EMPTY : root).assoc(0, hash(key), key, value, addedLeaf);
+        if (newRoot == root) return this;
+        return new PersistentHashMap<>(newRoot, addedLeaf[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return A map without the key, this map if it did not contain it
+     */
+    public PersistentHashMap<K, V> minus(Object key) {
+        if (root == null || key == null) return this;
+        Node newRoot = root.without(0, hash(key), key);
+        if (newRoot == root) return this;
+        return new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Both node types store their entries as key/value pairs in one array, a null key marks a sub-node in place of the value.
+     */
+    private abstract static class Node {
+        final Object[] array;
+
+        Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf);
+
+        //Returns null if the node became empty
+        abstract Node without(int shift, int hash, Object key);
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        static int bitpos(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return null;
+            int index = index(bit);
+            Object keyOrNull = array[2 * index];
+            Object valueOrNode = array[2 * index + 1];
+            if (keyOrNull == null) return ((Node) valueOrNode).find(shift + BITS, hash, key);
+            return key.equals(keyOrNull) ? valueOrNode : null;
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf) {
+            int bit = bitpos(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                int count = Integer.bitCount(bitmap);
+                Object[] newArray = new Object[2 * (count + 1)];
+                System.arraycopy(array, 0, newArray, 0, 2 * index);
+                newArray[2 * index] = key;
+                newArray[2 * index + 1] = value;
+                System.arraycopy(array, 2 * index, newArray, 2 * (index + 1), 2 * (count - index));
+                addedLeaf[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            Object keyOrNull = array[2 * index];
+            Object valueOrNode = array[2 * index + 1];
+            if (keyOrNull == null) {
+                Node child = ((Node) valueOrNode).assoc(shift + BITS, hash, key, value, addedLeaf);
+                if (child == valueOrNode) return this;
+                return new BitmapNode(bitmap, cloneAndSet(array, 2 * index + 1, child));
+            }
+            if (key.equals(keyOrNull)) {
+                if (value == valueOrNode) return this;
+                return new BitmapNode(bitmap, cloneAndSet(array, 2 * index + 1, value));
+            }
+            addedLeaf[0] = true;
+            Object[] newArray = cloneAndSet(array, 2 * index, null);
+            newArray[2 * index + 1] = createNode(shift + BITS, keyOrNull, valueOrNode, hash, key, value);
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        Node without(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int index = index(bit);
+            Object keyOrNull = array[2 * index];
+            Object valueOrNode = array[2 * index + 1];
+            if (keyOrNull == null) {
+                Node child = ((Node) valueOrNode).without(shift + BITS, hash, key);
+                if (child == valueOrNode) return this;
+                if (child != null) return new BitmapNode(bitmap, cloneAndSet(array, 2 * index + 1, child));
+            } else if (!key.equals(keyOrNull)) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * index);
+            System.arraycopy(array, 2 * (index + 1), newArray, 2 * index, newArray.length - 2 * index);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            boolean[] addedLeaf = new boolean[1];
+            return EMPTY
+                    .assoc(shift, hash1, key1, value1, addedLeaf)
+                    .assoc(shift, hash2, key2, value2, addedLeaf);
+        }
+    }
+
+    /**
+     * Holds every entry whose full hash is equal
+     */
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        int findIndex(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash) return null;
+            int index = findIndex(key);
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf) {
+            if (hash != this.hash) {
+                //Nest this node into a bitmap node that can tell both hashes apart
+                return new BitmapNode(BitmapNode.bitpos(this.hash, shift), new Object[]{null, this})
+                        .assoc(shift, hash, key, value, addedLeaf);
+            }
+            int index = findIndex(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) return this;
+                return new CollisionNode(hash, cloneAndSet(array, index + 1, value));
+            }
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            addedLeaf[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node without(int shift, int hash, Object key) {
+            if (hash != this.hash) return this;
+            int index = findIndex(key);
+            if (index < 0) return this;
+            if (array.length == 2) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+            return new CollisionNode(hash, newArray);
+        }
+    }
+
+    private static Object[] cloneAndSet(Object[] array, int index, Object value) {
+        Object[] clone = array.clone();
+        clone[index] = value;
+        return clone;
+    }
+
+    /**
+     * Walks the trie depth first without copying any entries
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Object[][]      arrays    = new Object[MAX_DEPTH][];
+        private final int[]           positions = new int[MAX_DEPTH];
+        private       int             depth     = -1;
+        private       Map.Entry<K, V> next      = null;
+
+        EntryIterator(Node root) {
+            if (root != null) push(root);
+            advance();
+        }
+
+        private void push(Node node) {
+            depth++;
+            arrays[depth] = node.array;
+            positions[depth] = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int position = positions[depth];
+                if (position >= array.length) {
+                    arrays[depth] = null;
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                Object keyOrNull = array[position];
+                Object valueOrNode = array[position + 1];
+                if (keyOrNull == null) {
+                    push((Node) valueOrNode);
+                    continue;
+                }
+                next = new AbstractMap.SimpleImmutableEntry<>((K) keyOrNull, (V) valueOrNode);
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
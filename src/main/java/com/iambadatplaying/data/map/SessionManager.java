@@ -23,14 +23,16 @@ public class SessionManager extends MapDataManager<String> {
 
     private static final Pattern URI_PATTERN = Pattern.compile("^/product-session/v1/sessions/(.*)");
     private static final String PRODUCT_ID_KEYSTONE_CLIENT = "KeystoneClient";
+    private static final String INDEX_PRODUCT_ID = "productId";
 
-    private String keepAliveSessionId = null;
-    private String keystoneSessionId = null;
+    private volatile String keepAliveSessionId = null;
+    private volatile String keystoneSessionId = null;
 
     private Timer timer;
 
     public SessionManager(Starter starter) {
         super(starter);
+        addIndex(INDEX_PRODUCT_ID, session -> Optional.ofNullable(session.get("productId")).filter(JsonElement::isJsonPrimitive).map(JsonElement::getAsString));
     }
 
     private synchronized void resetTimer() {
@@ -47,8 +49,10 @@ public class SessionManager extends MapDataManager<String> {
         for (Map.Entry<String, JsonElement> entry : response.entrySet()) {
             String key = entry.getKey();
             JsonObject value = entry.getValue().getAsJsonObject();
-            map.put(key, value);
+            putEntry(key, value);
         }
+        //Clients that subscribed before the manager started receive the existing sessions as well
+        sendCurrentState();
     }
 
     @Override
@@ -56,6 +60,11 @@ public class SessionManager extends MapDataManager<String> {
         return get(key);
     }
 
+    @Override
+    protected Optional<String> parseKey(String key) {
+        return Optional.of(key);
+    }
+
     @Override
     public Optional<JsonObject> load(String key) {
         return Optional.empty();
@@ -63,7 +72,7 @@ public class SessionManager extends MapDataManager<String> {
 
     @Override
     public String getSingleKeyUpdateEventName() {
-        return "";
+        return "SessionUpdate";
     }
 
     @Override
@@ -83,12 +92,12 @@ public class SessionManager extends MapDataManager<String> {
 
     @Override
     public void sendCurrentState() {
-
+        broadcastMap();
     }
 
     @Override
-    protected Matcher getURIMatcher(String uri) {
-        return URI_PATTERN.matcher(uri);
+    public Pattern getURIPattern() {
+        return URI_PATTERN;
     }
 
     @Override
@@ -98,14 +107,20 @@ public class SessionManager extends MapDataManager<String> {
         switch (type) {
             case UPDATE_TYPE_CREATE:
 //                checkForKeystoneInstanceCreation(sessionId, data);
-                Util.getAsJsonObject(data).ifPresent(obj -> map.put(sessionId, obj));
+                Util.getAsJsonObject(data).ifPresent(obj -> {
+                    putEntry(sessionId, obj);
+                    broadcastKeyUpdate(sessionId, obj);
+                });
                 break;
             case UPDATE_TYPE_UPDATE:
-                Util.getAsJsonObject(data).ifPresent(obj -> map.put(sessionId, obj));
+                Util.getAsJsonObject(data).ifPresent(obj -> {
+                    if (putEntryIfChanged(sessionId, obj)) broadcastKeyUpdate(sessionId, obj);
+                });
                 break;
             case UPDATE_TYPE_DELETE:
 //                checkForKeystoneInstanceDeletion(sessionId);
-                map.remove(sessionId);
+                removeEntry(sessionId);
+                broadcastKeyUpdate(sessionId, null);
                 break;
             default:
                 break;
@@ -113,7 +128,7 @@ public class SessionManager extends MapDataManager<String> {
     }
 
     private void checkForKeystoneInstanceDeletion(String sessionId) {
-        Optional<String> optProductId = Util.getAsJsonObject(map.get(sessionId)).flatMap(obj -> Util.getOptString(obj, "productId"));
+        Optional<String> optProductId = Util.getAsJsonObject(getEntries().get(sessionId)).flatMap(obj -> Util.getOptString(obj, "productId"));
         if (!optProductId.isPresent()) return;
         String productId = optProductId.get();
         if (PRODUCT_ID_KEYSTONE_CLIENT.equals(productId) && sessionId.equals(keystoneSessionId)) {
@@ -130,7 +145,7 @@ public class SessionManager extends MapDataManager<String> {
 
     private void unregisterKeepAliveSession() {
         if (keepAliveSessionId == null) return;
-        HttpsURLConnection con = starter.getRCConnector().getRCConnectionManager().buildConnection(RCConnectionManager.Method.DELETE, "/product-session/v1/sessions/" + keepAliveSessionId, map.get(keepAliveSessionId).toString());
+        HttpsURLConnection con = starter.getRCConnector().getRCConnectionManager().buildConnection(RCConnectionManager.Method.DELETE, "/product-session/v1/sessions/" + keepAliveSessionId, getEntries().get(keepAliveSessionId).toString());
         Optional<Integer> optResponse = Util.getResponseCode(con);
         con.disconnect();
         if (!optResponse.isPresent()) return;
@@ -164,23 +179,13 @@ public class SessionManager extends MapDataManager<String> {
     }
 
     public JsonArray getSessionsByGame(Game game) {
-        if (this.map.isEmpty()) return new JsonArray();
-
         JsonArray sessions = new JsonArray();
-        map.forEach((key, value) -> {
-            JsonObject session = value.getAsJsonObject();
-            if (!Util.jsonKeysPresent(session, "productId")) return;
-            String productId = session.get("productId").getAsString();
-            if (game.getInternalName().equals(productId)) {
-                sessions.add(session);
-            }
-        });
-
+        getEntriesBy(INDEX_PRODUCT_ID, game.getInternalName()).values().forEach(sessions::add);
         return sessions;
     }
 
     @Override
     public String getEventName() {
-        return "";
+        return "Sessions";
     }
 }
@@ -6,6 +6,7 @@ import com.iambadatplaying.Starter;
 import com.iambadatplaying.logger.LogLevel;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,7 +14,7 @@ public class ValorantMatchDataManager extends MapDataManager<String> {
 
     private static final Pattern RMS_MATCH_UPDATE_PATTERN = Pattern.compile("/riot-messaging-service/v1/messages/ares-core-game/core-game/v1/matches/([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})");
 
-    private final Set<String> matchIds = new HashSet<>();
+    private final Set<String> matchIds = ConcurrentHashMap.newKeySet();
 
     public ValorantMatchDataManager(Starter starter) {
         super(starter);
@@ -24,6 +25,11 @@ public class ValorantMatchDataManager extends MapDataManager<String> {
         return Optional.empty();
     }
 
+    @Override
+    protected Optional<String> parseKey(String key) {
+        return Optional.of(key);
+    }
+
     @Override
     public Optional<JsonObject> load(String key) {
         return Optional.empty();
@@ -48,8 +54,8 @@ public class ValorantMatchDataManager extends MapDataManager<String> {
     }
 
     @Override
-    protected Matcher getURIMatcher(String uri) {
-        return RMS_MATCH_UPDATE_PATTERN.matcher(uri);
+    public Pattern getURIPattern() {
+        return RMS_MATCH_UPDATE_PATTERN;
     }
 
     public Set<String> getMatchIds() {
@@ -61,8 +67,7 @@ public class ValorantMatchDataManager extends MapDataManager<String> {
         if (!UPDATE_TYPE_CREATE.equals(type)) return;
         if (uriMatcher.groupCount() < 1) return;
         String matchId = uriMatcher.group(1);
-        if (matchIds.contains(matchId)) return;
-        matchIds.add(matchId);
+        if (!matchIds.add(matchId)) return;
         log(LogLevel.INFO, "New match: " + matchId);
     }
 
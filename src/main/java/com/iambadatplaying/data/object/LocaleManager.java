@@ -32,12 +32,12 @@ public class LocaleManager extends ObjectDataManager {
 
     @Override
     public void sendCurrentState() {
-        starter.getLocalServer().sendToAllWebsockets(getEventDataString(getCurrentStateObject()));
+        broadcastState(getCurrentStateObject());
     }
 
     @Override
-    protected Matcher getURIMatcher(String uri) {
-        return LOCALE_PATTERN.matcher(uri);
+    public Pattern getURIPattern() {
+        return LOCALE_PATTERN;
     }
 
     @Override
@@ -50,7 +50,7 @@ public class LocaleManager extends ObjectDataManager {
                 if (!jsonObject.has("locale")) return;
                 JsonObject newLocale = new JsonObject();
                 newLocale.addProperty("locale", jsonObject.get("locale").getAsString());
-                setCurrentState(newLocale);
+                if (!updateCurrentState(newLocale)) break;
                 sendCurrentState();
                 break;
             case UPDATE_TYPE_DELETE:
@@ -1,34 +1,81 @@
 package com.iambadatplaying.data.object;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
 import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.data.JsonPatch;
 
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class ObjectDataManager extends BasicDataManager {
 
-    private AtomicReference<JsonObject> currentState = new AtomicReference<>(new JsonObject());
+    private final AtomicReference<JsonObject> currentState     = new AtomicReference<>(new JsonObject());
+    private       long                        currentStateHash = Util.hashJsonElement(new JsonObject());
+    private       JsonObject                  publishedState   = null;
 
-    protected void setCurrentState(JsonObject newState) {
+    protected synchronized void setCurrentState(JsonObject newState) {
         currentState.set(newState);
+        currentStateHash = Util.hashJsonElement(newState);
+    }
+
+    /**
+     * Sets the new state unless it is equal to the current one.
+     *
+     * @return False if the state did not change and nothing needs to be sent
+     */
+    protected synchronized boolean updateCurrentState(JsonObject newState) {
+        long newHash = Util.hashJsonElement(newState);
+        boolean unchanged = newHash == currentStateHash && Util.equalJsonElements(currentState.get(), newState);
+        recordDedupe(unchanged);
+        if (unchanged) return false;
+        currentState.set(newState);
+        currentStateHash = newHash;
+        return true;
     }
 
     protected JsonObject getCurrentStateObject() {
         return currentState.get();
     }
 
+    /**
+     * Sends the state to regular clients and its difference to the last sent state to clients that asked for deltas
+     */
+    protected synchronized void broadcastState(JsonObject state) {
+        JsonArray patch = JsonPatch.diff(toJson(publishedState), toJson(state));
+        publishedState = state;
+        broadcast(getEventData(state), patch, getEventName());
+    }
+
+    private static JsonElement toJson(JsonObject state) {
+        return state == null ? JsonNull.INSTANCE : state;
+    }
+
+    /**
+     * Only what was sent to the clients, a state that was set but not sent yet is left out
+     */
+    @Override
+    protected synchronized Optional<JsonElement> getSnapshot(String key) {
+        return Optional.ofNullable(publishedState);
+    }
+
     protected ObjectDataManager(Starter starter) {
         super(starter);
     }
 
     public Optional<JsonObject> getCurrentState() {
         if (!running) return Optional.empty();
-        if (currentState != null) return Optional.of(currentState.get());
+        JsonObject state = currentState.get();
+        if (state != null) return Optional.of(state);
         Optional<JsonObject> newState = fetchCurrentState();
-        newState.ifPresent(currentState::set);
+        newState.ifPresent(fetchedState -> {
+            setCurrentState(fetchedState);
+            sendCurrentState();
+        });
         return newState;
     }
 
@@ -37,13 +84,20 @@ public abstract class ObjectDataManager extends BasicDataManager {
     @Override
     public void stop() {
         super.stop();
-        currentState = null;
+        synchronized (this) {
+            setCurrentState(null);
+            publishedState = null;
+        }
     }
 
     @Override
     public void reset() {
         if (!running) return;
-        currentState = null;
-        sendCurrentState();
+        synchronized (this) {
+            setCurrentState(null);
+            sendCurrentState();
+            //Managers that do not send an empty state must not hand out the old one to new clients either
+            publishedState = null;
+        }
     }
 }
@@ -44,12 +44,12 @@ public class RSOAuthenticationManager extends ObjectDataManager {
     public void sendCurrentState() {
         JsonObject currentState = getCurrentStateObject();
         if (currentState == null) return;
-        starter.getLocalServer().sendToAllWebsockets(getEventDataString(currentState));
+        broadcastState(currentState);
     }
 
     @Override
-    protected Matcher getURIMatcher(String uri) {
-        return URI_PATTERN.matcher(uri);
+    public Pattern getURIPattern() {
+        return URI_PATTERN;
     }
 
     @Override
@@ -67,7 +67,7 @@ public class RSOAuthenticationManager extends ObjectDataManager {
                             log(LogLevel.INFO, "Multifactor: " + multifactor);
                         }
                 );
-                setCurrentState(jsonObject);
+                if (!updateCurrentState(jsonObject)) break;
                 sendCurrentState();
                 break;
             case UPDATE_TYPE_DELETE:
@@ -23,15 +23,37 @@ import java.util.Optional;
 
 public class RCClient implements Managable, Loggable {
 
-    private static final int     MAXIMUM_BUFFER_SIZE = Integer.MAX_VALUE;
+    //Jetty closes the connection on oversized messages, RCWebsocket enforces its own limit instead
+    private static final int     MAXIMUM_BUFFER_SIZE        = Integer.MAX_VALUE;
+    public static final  int     DEFAULT_MAXIMUM_FRAME_SIZE = 64 * 1024 * 1024;
     private final        Starter starter;
 
+    private int maximumFrameSize = DEFAULT_MAXIMUM_FRAME_SIZE;
+
     private WebSocketClient client      = null;
     private boolean         running     = false;
     private RCWebsocket     rcWebsocket = null;
 
+    private final SubscriptionPlanner subscriptionPlanner = new SubscriptionPlanner();
+
     public RCClient(Starter starter) {
         this.starter = starter;
+        subscriptionPlanner.addListener(plan -> Optional.ofNullable(rcWebsocket).ifPresent(websocket -> websocket.applySubscriptions(plan)));
+    }
+
+    /**
+     * Takes effect for the next connection to the RC
+     */
+    public void setMaximumFrameSize(int maximumFrameSize) {
+        this.maximumFrameSize = maximumFrameSize;
+    }
+
+    public Optional<JsonObject> getWebsocketStats() {
+        return Optional.ofNullable(rcWebsocket).map(RCWebsocket::getStats);
+    }
+
+    public SubscriptionPlanner getSubscriptionPlanner() {
+        return subscriptionPlanner;
     }
 
     public static JsonObject createKeepAliveObject(boolean isInternal) {
@@ -69,7 +91,7 @@ public class RCClient implements Managable, Loggable {
         this.client = new WebSocketClient(httpClient);
         client.setStopAtShutdown(true);
         client.getPolicy().setMaxTextMessageSize(MAXIMUM_BUFFER_SIZE);
-        rcWebsocket = new RCWebsocket(starter);
+        rcWebsocket = new RCWebsocket(starter, maximumFrameSize);
 
         sslContextFactory.setSslContext(starter.getRCConnector().getSslContextGlobal());
         try {
@@ -4,6 +4,7 @@ import com.iambadatplaying.EXIT_CODE;
 import com.iambadatplaying.Managable;
 import com.iambadatplaying.Starter;
 import com.iambadatplaying.Util;
+import com.iambadatplaying.data.dispatch.EventPriority;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
@@ -30,6 +31,8 @@ public class RCConnector implements Managable, Loggable {
         return Optional.empty();
     }
 
+    public static final String EVENT_CONNECTION_STATE = "ConnectionState";
+
     private final Starter starter;
 
     private       boolean             running          = false;
@@ -134,7 +137,7 @@ public class RCConnector implements Managable, Loggable {
         if (connectionState == newState) return;
         log("Transitioning from " + connectionState + " to " + newState);
         connectionState = newState;
-        starter.getLocalServer().sendToAllWebsockets(connectionState.toString());
+        starter.getLocalServer().publish(connectionState.toString(), EventPriority.HIGH, EVENT_CONNECTION_STATE);
         new Thread(
                 () -> {
                     if (!running) return;
@@ -1,17 +1,29 @@
 package com.iambadatplaying.rcconnection;
 
+import com.google.gson.JsonObject;
 import com.iambadatplaying.Starter;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 @WebSocket
 public class RCWebsocket implements Loggable {
+    private static final int SHRINK_THRESHOLD = 1024 * 1024;
+
     private final Starter   starter;
     private       Session   currentSession;
     private final TimerTask timerTask = new TimerTask() {
@@ -27,23 +39,104 @@ public class RCWebsocket implements Loggable {
     };
     private final Timer     timer     = new Timer();
 
-    public RCWebsocket(Starter starter) {
+    private final Set<String> activeSubscriptions = new HashSet<>();
+
+    private final int                   maximumFrameSize;
+    private       ByteArrayOutputStream frameBuffer       = new ByteArrayOutputStream();
+    private       boolean               inTextMessage     = false;
+    private       boolean               discardingMessage = false;
+    private       int                   messageSize       = 0;
+
+    private final AtomicLong receivedMessages  = new AtomicLong();
+    private final AtomicLong oversizedMessages = new AtomicLong();
+    private final AtomicLong discardedBytes    = new AtomicLong();
+    private final AtomicLong largestMessage    = new AtomicLong();
+
+    /**
+     * @param maximumFrameSize Text messages larger than this many bytes are dropped while they are still being received
+     */
+    public RCWebsocket(Starter starter, int maximumFrameSize) {
         this.starter = starter;
+        this.maximumFrameSize = maximumFrameSize;
     }
 
     @OnWebSocketConnect
     public void onConnect(Session session) {
         this.currentSession = session;
         log("Connect: " + session.getRemoteAddress().getAddress());
-        subscribeToEndpoint("OnJsonApiEvent");
+        applySubscriptions(starter.getRCConnector().getRCClient().getSubscriptionPlanner().getPlan());
         timer.schedule(timerTask, 0, 290000);
     }
 
-    @OnWebSocketMessage
-    public void onMessage(String message) {
+    /**
+     * Assembles text messages from their frames ourselves instead of letting Jetty aggregate them into one String.
+     * Frames arrive in order on the connection's reading thread, so a message exceeding the maximum frame size
+     * is discarded as soon as the limit is hit, without ever buffering the rest of it.
+     */
+    @OnWebSocketFrame
+    public void onFrame(Frame frame) {
+        switch (frame.getType()) {
+            case TEXT:
+                inTextMessage = true;
+                discardingMessage = false;
+                messageSize = 0;
+                frameBuffer.reset();
+                break;
+            case CONTINUATION:
+                if (!inTextMessage) return;
+                break;
+            default:
+                return;
+        }
+
+        int payloadLength = frame.getPayloadLength();
+        messageSize += payloadLength;
+        if (!discardingMessage && messageSize > maximumFrameSize) {
+            discardingMessage = true;
+            oversizedMessages.incrementAndGet();
+            discardedBytes.addAndGet(frameBuffer.size());
+            frameBuffer.reset();
+            log(LogLevel.WARN, "Discarding message exceeding " + maximumFrameSize + " bytes");
+        }
+
+        if (discardingMessage) {
+            discardedBytes.addAndGet(payloadLength);
+        } else if (frame.hasPayload()) {
+            ByteBuffer payload = frame.getPayload().slice();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            frameBuffer.write(bytes, 0, bytes.length);
+        }
+
+        if (!frame.isFin()) return;
+        inTextMessage = false;
+        if (messageSize > largestMessage.get()) largestMessage.set(messageSize);
+        if (discardingMessage) return;
+
+        receivedMessages.incrementAndGet();
+        String message;
+        try {
+            //Decodes straight from the internal buffer instead of copying it first
+            message = frameBuffer.toString(StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        frameBuffer.reset();
+        //Do not keep the buffer of a large message around once it is processed
+        if (messageSize > SHRINK_THRESHOLD) frameBuffer = new ByteArrayOutputStream();
         starter.getDataManger().handleData(message);
     }
 
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("maximumFrameSize", maximumFrameSize);
+        stats.addProperty("receivedMessages", receivedMessages.get());
+        stats.addProperty("oversizedMessages", oversizedMessages.get());
+        stats.addProperty("discardedBytes", discardedBytes.get());
+        stats.addProperty("largestMessage", largestMessage.get());
+        return stats;
+    }
+
     @OnWebSocketClose
     public void onClose(int statusCode, String reason) {
         log("Closed: " + reason);
@@ -83,6 +176,33 @@ public class RCWebsocket implements Loggable {
         subscribeToEndpoint(endpoint, 0);
     }
 
+    public void unsubscribeFromEndpoint(String endpoint) {
+        try {
+            log("Unsubscribing from: " + endpoint);
+            currentSession.getRemote().sendString("[6, \"" + endpoint + "\"]");
+        } catch (Exception e) {
+            log(LogLevel.WARN, "Cannot unsubscribe from endpoint: " + endpoint);
+        }
+    }
+
+    /**
+     * Brings the RC subscriptions in line with the given topics.
+     * New topics are subscribed before obsolete ones are dropped, so no events are missed in between.
+     */
+    public synchronized void applySubscriptions(Set<String> topics) {
+        if (currentSession == null) return;
+        for (String topic : topics) {
+            if (activeSubscriptions.add(topic)) subscribeToEndpoint(topic);
+        }
+        Iterator<String> iterator = activeSubscriptions.iterator();
+        while (iterator.hasNext()) {
+            String topic = iterator.next();
+            if (topics.contains(topic)) continue;
+            iterator.remove();
+            unsubscribeFromEndpoint(topic);
+        }
+    }
+
     @Override
     public void log(Object o) {
         log(LogLevel.DEBUG, o);
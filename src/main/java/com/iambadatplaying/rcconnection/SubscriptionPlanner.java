@@ -0,0 +1,154 @@
+package com.iambadatplaying.rcconnection;
+
+import com.iambadatplaying.data.dispatch.UriRoutingIndex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Derives the narrowest set of {@code OnJsonApiEvent_<path>} topics that covers the URI patterns
+ * every interested party (data managers, local clients, ...) registered.
+ * Falls back to the {@link #FIREHOSE_TOPIC} as soon as one pattern has no usable static path.
+ * New plans are announced on the notifier, never on the thread that changed the interests, as applying a plan
+ * blocks on the RC. Plans that are superseded before they were announced are skipped.
+ */
+public class SubscriptionPlanner {
+
+    public static final String FIREHOSE_TOPIC = "OnJsonApiEvent";
+
+    private final Map<String, Set<String>>    interests = new HashMap<>();
+    private final List<Consumer<Set<String>>> listeners = new ArrayList<>();
+    private final Executor                    notifier;
+
+    private Set<String> currentPlan = Collections.singleton(FIREHOSE_TOPIC);
+    //The latest plan not announced yet, null if no announcement is scheduled
+    private Set<String> pendingPlan = null;
+
+    public SubscriptionPlanner() {
+        this(createNotifier());
+    }
+
+    /**
+     * @param notifier Runs the announcements, it has to run them one at a time and in order
+     */
+    public SubscriptionPlanner(Executor notifier) {
+        this.notifier = notifier;
+    }
+
+    private static Executor createNotifier() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "SubscriptionPlanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return The topic covering every URI the pattern can match, empty if only the firehose can
+     */
+    public static Optional<String> getTopicForPattern(Pattern pattern) {
+        if (pattern == null) return Optional.empty();
+        String regex = pattern.pattern();
+        String prefix = UriRoutingIndex.getLiteralPrefix(regex);
+        if (regex.startsWith("^")) regex = regex.substring(1);
+        if (regex.endsWith("$")) regex = regex.substring(0, regex.length() - 1);
+        boolean exactPath = regex.equals(prefix);
+        //Only complete path segments may be used, the RC matches topics per segment
+        String path = exactPath ? prefix : prefix.substring(0, prefix.lastIndexOf('/') + 1);
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (!path.startsWith("/") || path.length() < 2) return Optional.empty();
+        return Optional.of(FIREHOSE_TOPIC + path.replace('/', '_'));
+    }
+
+    public synchronized void setInterests(String owner, Collection<Pattern> patterns) {
+        Set<String> topics = new TreeSet<>();
+        for (Pattern pattern : patterns) {
+            Optional<String> optTopic = getTopicForPattern(pattern);
+            if (!optTopic.isPresent()) {
+                topics.clear();
+                topics.add(FIREHOSE_TOPIC);
+                break;
+            }
+            topics.add(optTopic.get());
+        }
+        interests.put(owner, topics);
+        replan();
+    }
+
+    public synchronized void removeInterests(String owner) {
+        if (interests.remove(owner) == null) return;
+        replan();
+    }
+
+    public synchronized Set<String> getPlan() {
+        return currentPlan;
+    }
+
+    public synchronized void addListener(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(Consumer<Set<String>> listener) {
+        listeners.remove(listener);
+    }
+
+    private static boolean isCovered(String topic, Set<String> topics) {
+        for (String other : topics) {
+            if (topic.startsWith(other + "_")) return true;
+        }
+        return false;
+    }
+
+    private void replan() {
+        Set<String> topics = new TreeSet<>();
+        interests.values().forEach(topics::addAll);
+
+        Set<String> plan = new TreeSet<>();
+        if (topics.isEmpty() || topics.contains(FIREHOSE_TOPIC)) {
+            plan.add(FIREHOSE_TOPIC);
+        } else {
+            for (String topic : topics) {
+                if (isCovered(topic, topics)) continue;
+                plan.add(topic);
+            }
+        }
+
+        if (plan.equals(currentPlan)) return;
+        currentPlan = Collections.unmodifiableSet(plan);
+        boolean scheduled = pendingPlan != null;
+        pendingPlan = currentPlan;
+        if (!scheduled) notifier.execute(this::announcePlan);
+    }
+
+    //Runs without the lock, listeners may block
+    private void announcePlan() {
+        Set<String> plan;
+        List<Consumer<Set<String>>> currentListeners;
+        synchronized (this) {
+            plan = pendingPlan;
+            pendingPlan = null;
+            currentListeners = new ArrayList<>(listeners);
+        }
+        if (plan == null) return;
+        for (Consumer<Set<String>> listener : currentListeners) {
+            listener.accept(plan);
+        }
+    }
+}
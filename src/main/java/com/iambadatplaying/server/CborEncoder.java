@@ -0,0 +1,150 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.iambadatplaying.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Encodes Gson trees as CBOR (RFC 8949) without building the JSON text first.
+ * Integers use the smallest fitting representation, every other number is sent as a double.
+ */
+public class CborEncoder {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT     = 3;
+    private static final int MAJOR_ARRAY    = 4;
+    private static final int MAJOR_MAP      = 5;
+
+    private static final int SIMPLE_FALSE = 0xf4;
+    private static final int SIMPLE_TRUE  = 0xf5;
+    private static final int SIMPLE_NULL  = 0xf6;
+    private static final int FLOAT_DOUBLE = 0xfb;
+
+    private CborEncoder() {}
+
+    public static byte[] encode(JsonElement element) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, element);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a text message, JSON objects and arrays are encoded structurally, anything else as a CBOR text string
+     */
+    public static byte[] encodeMessage(String message) {
+        if (message.startsWith("{") || message.startsWith("[")) {
+            Optional<JsonElement> element = Util.parseJson(message);
+            if (element.isPresent()) return encode(element.get());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeText(out, message);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the header of an array, the caller has to write exactly that many items afterwards
+     */
+    public static void writeArrayHeader(ByteArrayOutputStream out, int size) {
+        writeHeader(out, MAJOR_ARRAY, size);
+    }
+
+    public static void write(ByteArrayOutputStream out, JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            out.write(SIMPLE_NULL);
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeHeader(out, MAJOR_MAP, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeText(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeHeader(out, MAJOR_ARRAY, array.size());
+            for (JsonElement item : array) {
+                write(out, item);
+            }
+        } else {
+            writePrimitive(out, element.getAsJsonPrimitive());
+        }
+    }
+
+    private static void writePrimitive(ByteArrayOutputStream out, JsonPrimitive primitive) {
+        if (primitive.isBoolean()) {
+            out.write(primitive.getAsBoolean() ? SIMPLE_TRUE : SIMPLE_FALSE);
+        } else if (primitive.isNumber()) {
+            writeNumber(out, primitive);
+        } else {
+            writeText(out, primitive.getAsString());
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, JsonPrimitive primitive) {
+        String text = primitive.getAsString();
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(text);
+                if (value >= 0) {
+                    writeHeader(out, MAJOR_UNSIGNED, value);
+                } else {
+                    //Negative integers are encoded as -1 - n
+                    writeHeader(out, MAJOR_NEGATIVE, -1 - value);
+                }
+                return;
+            } catch (NumberFormatException e) {
+                //Larger than a long, sent as double
+                writeDouble(out, new BigInteger(text).doubleValue());
+                return;
+            }
+        }
+        writeDouble(out, primitive.getAsDouble());
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        out.write(FLOAT_DOUBLE);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHeader(out, MAJOR_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int majorType, long value) {
+        int major = majorType << 5;
+        if (value < 24) {
+            out.write(major | (int) value);
+        } else if (value <= 0xffL) {
+            out.write(major | 24);
+            out.write((int) value);
+        } else if (value <= 0xffffL) {
+            out.write(major | 25);
+            writeBigEndian(out, value, 2);
+        } else if (value <= 0xffffffffL) {
+            out.write(major | 26);
+            writeBigEndian(out, value, 4);
+        } else {
+            out.write(major | 27);
+            writeBigEndian(out, value, 8);
+        }
+    }
+
+    private static void writeBigEndian(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.iambadatplaying.server;
+
+/**
+ * Limits for the send queue of a single {@link LocalWebsocket}, so a stalled client can not make the server buffer forever.
+ */
+public class ClientQueuePolicy {
+
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 4096;
+
+    public static final ClientQueuePolicy DEFAULT = new ClientQueuePolicy(true, 0, DEFAULT_MAX_QUEUED_MESSAGES, true);
+
+    private final boolean conflate;
+    private final int     maxUpdatesPerSecondPerKey;
+    private final int     maxQueuedMessages;
+    private final boolean disconnectOnOverflow;
+
+    /**
+     * @param conflate                  Replace a queued full state with a newer one for the same key instead of sending both
+     * @param maxUpdatesPerSecondPerKey Updates beyond this rate are held back and only the latest one is sent, 0 disables the cap
+     * @param maxQueuedMessages         Number of queued messages at which the client counts as a slow consumer
+     * @param disconnectOnOverflow      Disconnect slow consumers instead of dropping their oldest bulk messages
+     */
+    public ClientQueuePolicy(boolean conflate, int maxUpdatesPerSecondPerKey, int maxQueuedMessages, boolean disconnectOnOverflow) {
+        if (maxUpdatesPerSecondPerKey < 0) throw new IllegalArgumentException("Rate cap must not be negative");
+        if (maxQueuedMessages <= 0) throw new IllegalArgumentException("Queue limit must be positive");
+        this.conflate = conflate;
+        this.maxUpdatesPerSecondPerKey = maxUpdatesPerSecondPerKey;
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.disconnectOnOverflow = disconnectOnOverflow;
+    }
+
+    public boolean isConflate() {
+        return conflate;
+    }
+
+    public int getMaxUpdatesPerSecondPerKey() {
+        return maxUpdatesPerSecondPerKey;
+    }
+
+    /**
+     * @return Minimum time between two updates of the same key, 0 if not rate limited
+     */
+    public long getMinUpdateIntervalNanos() {
+        return maxUpdatesPerSecondPerKey == 0 ? 0 : 1_000_000_000L / maxUpdatesPerSecondPerKey;
+    }
+
+    public int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    public boolean isDisconnectOnOverflow() {
+        return disconnectOnOverflow;
+    }
+}
@@ -0,0 +1,275 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonObject;
+import com.iambadatplaying.data.dispatch.EventPriority;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Send queue of a single {@link LocalWebsocket} that applies its {@link ClientQueuePolicy}.
+ * Holds one reference on every queued message, {@link #poll()} hands that reference over to the caller.
+ */
+public class ClientSendQueue {
+
+    private static class QueuedMessage {
+        private final OutboundMessage message;
+        private final long            enqueuedAtNanos = System.nanoTime();
+        private       boolean         superseded      = false;
+
+        private QueuedMessage(OutboundMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final ClientQueuePolicy    policy;
+    private final LocalWebsocketSender sender;
+    private final Runnable             onMessageReady;
+
+    private final ArrayDeque<QueuedMessage>    highPriorityQueue = new ArrayDeque<>();
+    private final ArrayDeque<QueuedMessage>    messageQueue      = new ArrayDeque<>();
+    private final Map<String, QueuedMessage>   pendingByKey      = new HashMap<>();
+    private final Map<String, OutboundMessage> deferredByKey     = new HashMap<>();
+    private final Map<String, Long>            nextAllowedNanos  = new HashMap<>();
+    private final Set<String>                  scheduledFlushes  = new HashSet<>();
+
+    private int     size          = 0;
+    private long    queuedBytes   = 0;
+    private int     highWatermark = 0;
+    private boolean closed        = false;
+
+    private long enqueued     = 0;
+    private long conflated    = 0;
+    private long rateLimited  = 0;
+    private long dropped      = 0;
+    private long lastLagNanos = 0;
+    private long maxLagNanos  = 0;
+
+    /**
+     * @param onMessageReady Invoked when a held back message became available, outside of the queue's lock
+     */
+    public ClientSendQueue(ClientQueuePolicy policy, LocalWebsocketSender sender, Runnable onMessageReady) {
+        this.policy = policy;
+        this.sender = sender;
+        this.onMessageReady = onMessageReady;
+    }
+
+    /**
+     * @return False if the client is a slow consumer and has to be disconnected, the message was not queued in that case
+     */
+    public synchronized boolean offer(OutboundMessage message) {
+        if (closed) return true;
+        String key = policy.isConflate() ? message.getConflationKey() : null;
+        long minIntervalNanos = policy.getMinUpdateIntervalNanos();
+        if (key != null && minIntervalNanos > 0) {
+            long now = System.nanoTime();
+            Long nextAllowed = nextAllowedNanos.get(key);
+            if (nextAllowed != null && now < nextAllowed) {
+                defer(key, message, nextAllowed - now);
+                return true;
+            }
+            nextAllowedNanos.put(key, now + minIntervalNanos);
+        }
+        return enqueue(key, message.retain());
+    }
+
+    //Must be called while holding the lock, takes over the caller's reference
+    private boolean enqueue(String key, OutboundMessage message) {
+        if (key != null) {
+            QueuedMessage previous = pendingByKey.get(key);
+            //The newer full state makes the queued one obsolete, it is sent at the end of the queue to keep its order relative to other messages
+            if (previous != null) {
+                previous.superseded = true;
+                queuedBytes -= previous.message.getSize();
+                previous.message.release();
+                size--;
+                conflated++;
+            }
+        }
+
+        if (size >= policy.getMaxQueuedMessages()) {
+            if (policy.isDisconnectOnOverflow()) {
+                message.release();
+                if (key != null) pendingByKey.remove(key);
+                return false;
+            }
+            if (!dropOldest(messageQueue) && !dropOldest(highPriorityQueue)) {
+                message.release();
+                dropped++;
+                return true;
+            }
+        }
+
+        QueuedMessage queuedMessage = new QueuedMessage(message);
+        if (key != null) pendingByKey.put(key, queuedMessage);
+        if (message.getPriority() == EventPriority.HIGH) {
+            highPriorityQueue.offer(queuedMessage);
+        } else {
+            messageQueue.offer(queuedMessage);
+        }
+        size++;
+        queuedBytes += message.getSize();
+        enqueued++;
+        if (size > highWatermark) highWatermark = size;
+        return true;
+    }
+
+    //Must be called while holding the lock
+    private boolean dropOldest(ArrayDeque<QueuedMessage> queue) {
+        QueuedMessage oldest;
+        while ((oldest = queue.poll()) != null) {
+            if (oldest.superseded) continue;
+            removePending(oldest);
+            queuedBytes -= oldest.message.getSize();
+            oldest.message.release();
+            size--;
+            dropped++;
+            return true;
+        }
+        return false;
+    }
+
+    //Must be called while holding the lock
+    private void defer(String key, OutboundMessage message, long delayNanos) {
+        OutboundMessage previous = deferredByKey.put(key, message.retain());
+        if (previous != null) previous.release();
+        rateLimited++;
+        if (!scheduledFlushes.add(key)) return;
+        sender.schedule(() -> flushDeferred(key), Math.max(1, delayNanos / 1_000_000));
+    }
+
+    private void flushDeferred(String key) {
+        synchronized (this) {
+            scheduledFlushes.remove(key);
+            OutboundMessage message = deferredByKey.remove(key);
+            if (message == null) return;
+            if (closed) {
+                message.release();
+                return;
+            }
+            nextAllowedNanos.put(key, System.nanoTime() + policy.getMinUpdateIntervalNanos());
+            //A slow consumer is detected on the next regular offer
+            if (!enqueue(key, message)) return;
+        }
+        onMessageReady.run();
+    }
+
+    //Must be called while holding the lock
+    private void removePending(QueuedMessage queuedMessage) {
+        String key = queuedMessage.message.getConflationKey();
+        if (key != null) pendingByKey.remove(key, queuedMessage);
+    }
+
+    /**
+     * High priority messages always overtake the bulk queue.
+     *
+     * @return The next message together with the queue's reference on it, null if the queue is empty
+     */
+    public synchronized OutboundMessage poll() {
+        return pollIfFits(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes Size limit for the next message
+     * @return The next message together with the queue's reference on it, null if the queue is empty or the next message is larger
+     */
+    public synchronized OutboundMessage pollIfFits(long maxBytes) {
+        QueuedMessage queuedMessage = peek(highPriorityQueue);
+        if (queuedMessage == null) queuedMessage = peek(messageQueue);
+        if (queuedMessage == null || queuedMessage.message.getSize() > maxBytes) return null;
+        if (queuedMessage.message.getPriority() == EventPriority.HIGH) {
+            highPriorityQueue.poll();
+        } else {
+            messageQueue.poll();
+        }
+        removePending(queuedMessage);
+        size--;
+        queuedBytes -= queuedMessage.message.getSize();
+        lastLagNanos = System.nanoTime() - queuedMessage.enqueuedAtNanos;
+        if (lastLagNanos > maxLagNanos) maxLagNanos = lastLagNanos;
+        return queuedMessage.message;
+    }
+
+    //Must be called while holding the lock
+    private static QueuedMessage poll(ArrayDeque<QueuedMessage> queue) {
+        QueuedMessage queuedMessage;
+        while ((queuedMessage = queue.poll()) != null) {
+            if (!queuedMessage.superseded) return queuedMessage;
+        }
+        return null;
+    }
+
+    //Must be called while holding the lock, discards superseded messages at the head
+    private static QueuedMessage peek(ArrayDeque<QueuedMessage> queue) {
+        QueuedMessage queuedMessage;
+        while ((queuedMessage = queue.peek()) != null) {
+            if (!queuedMessage.superseded) return queuedMessage;
+            queue.poll();
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Encoded size of all queued messages
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Releases every queued and held back message, later offers are ignored
+     */
+    public synchronized void close() {
+        closed = true;
+        QueuedMessage queuedMessage;
+        while ((queuedMessage = poll(highPriorityQueue)) != null) {
+            queuedMessage.message.release();
+        }
+        while ((queuedMessage = poll(messageQueue)) != null) {
+            queuedMessage.message.release();
+        }
+        deferredByKey.values().forEach(OutboundMessage::release);
+        deferredByKey.clear();
+        pendingByKey.clear();
+        size = 0;
+        queuedBytes = 0;
+    }
+
+    //Must be called while holding the lock
+    private Optional<Long> getOldestEnqueuedAtNanos() {
+        Long oldest = null;
+        for (ArrayDeque<QueuedMessage> queue : Arrays.asList(highPriorityQueue, messageQueue)) {
+            for (QueuedMessage queuedMessage : queue) {
+                if (queuedMessage.superseded) continue;
+                if (oldest == null || queuedMessage.enqueuedAtNanos < oldest) oldest = queuedMessage.enqueuedAtNanos;
+                break;
+            }
+        }
+        return Optional.ofNullable(oldest);
+    }
+
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("queueDepth", size);
+        stats.addProperty("queuedBytes", queuedBytes);
+        stats.addProperty("highWatermark", highWatermark);
+        stats.addProperty("heldBack", deferredByKey.size());
+        stats.addProperty("enqueued", enqueued);
+        stats.addProperty("conflated", conflated);
+        stats.addProperty("rateLimited", rateLimited);
+        stats.addProperty("dropped", dropped);
+        stats.addProperty("currentLagMs", getOldestEnqueuedAtNanos().map(enqueuedAt -> (System.nanoTime() - enqueuedAt) / 1_000_000d).orElse(0d));
+        stats.addProperty("lastLagMs", lastLagNanos / 1_000_000d);
+        stats.addProperty("maxLagMs", maxLagNanos / 1_000_000d);
+        return stats;
+    }
+}
@@ -0,0 +1,57 @@
+package com.iambadatplaying.server;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings for permessage-deflate (RFC 7692) on the local websocket, negotiated with every client that offers it.
+ */
+public class CompressionPolicy {
+
+    public static final int DEFAULT_MIN_MESSAGE_BYTES = 1024;
+
+    public static final CompressionPolicy DEFAULT  = new CompressionPolicy(true, Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_MESSAGE_BYTES, true, true);
+    public static final CompressionPolicy DISABLED = new CompressionPolicy(false, Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_MESSAGE_BYTES, true, true);
+
+    private final boolean enabled;
+    private final int     level;
+    private final int     minMessageBytes;
+    private final boolean serverContextTakeover;
+    private final boolean clientContextTakeover;
+
+    /**
+     * @param enabled               Whether permessage-deflate is accepted at all
+     * @param level                 Deflate level from 0 to 9, -1 for the default level
+     * @param minMessageBytes       Smaller messages are sent uncompressed, compressing them costs more than it saves
+     * @param serverContextTakeover Keep the compression window across messages sent by the server, costs memory per connection
+     * @param clientContextTakeover Allow the client to keep its compression window, costs inflater memory per connection
+     */
+    public CompressionPolicy(boolean enabled, int level, int minMessageBytes, boolean serverContextTakeover, boolean clientContextTakeover) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("Invalid compression level");
+        if (minMessageBytes < 0) throw new IllegalArgumentException("Minimum message size must not be negative");
+        this.enabled = enabled;
+        this.level = level;
+        this.minMessageBytes = minMessageBytes;
+        this.serverContextTakeover = serverContextTakeover;
+        this.clientContextTakeover = clientContextTakeover;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMinMessageBytes() {
+        return minMessageBytes;
+    }
+
+    public boolean isServerContextTakeover() {
+        return serverContextTakeover;
+    }
+
+    public boolean isClientContextTakeover() {
+        return clientContextTakeover;
+    }
+}
@@ -0,0 +1,100 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Options a client negotiates when connecting to /ws, passed as query parameters,
+ * e.g. {@code /ws?batchWindowMs=5&batchMaxBytes=65536&encoding=cbor}.
+ */
+public class ConnectionOptions {
+
+    public static final String PARAM_BATCH_WINDOW_MS = "batchWindowMs";
+    public static final String PARAM_BATCH_MAX_BYTES = "batchMaxBytes";
+    public static final String PARAM_ENCODING        = "encoding";
+
+    public static final int MAX_BATCH_WINDOW_MS     = 100;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+    public static final int MIN_BATCH_MAX_BYTES     = 1024;
+    public static final int MAX_BATCH_MAX_BYTES     = 1024 * 1024;
+
+    public static final ConnectionOptions DEFAULT = new ConnectionOptions(0, DEFAULT_BATCH_MAX_BYTES, MessageEncoding.JSON);
+
+    private final int             batchWindowMs;
+    private final int             batchMaxBytes;
+    private final MessageEncoding encoding;
+
+    /**
+     * @param batchWindowMs How long the first queued message waits for others to share its frame, 0 disables batching
+     * @param batchMaxBytes Frames are flushed early once the queued messages reach this size
+     * @param encoding      Wire format of every message sent to the client
+     */
+    public ConnectionOptions(int batchWindowMs, int batchMaxBytes, MessageEncoding encoding) {
+        this.batchWindowMs = clamp(batchWindowMs, 0, MAX_BATCH_WINDOW_MS);
+        this.batchMaxBytes = clamp(batchMaxBytes, MIN_BATCH_MAX_BYTES, MAX_BATCH_MAX_BYTES);
+        this.encoding = encoding;
+    }
+
+    /**
+     * Unknown or malformed parameters fall back to their defaults, the server clamps values to sane limits.
+     */
+    public static ConnectionOptions fromParameters(Map<String, List<String>> parameters) {
+        if (parameters == null) return DEFAULT;
+        if (!parameters.containsKey(PARAM_BATCH_WINDOW_MS) && !parameters.containsKey(PARAM_BATCH_MAX_BYTES) && !parameters.containsKey(PARAM_ENCODING)) return DEFAULT;
+        int batchWindowMs = getIntParameter(parameters, PARAM_BATCH_WINDOW_MS).orElse(DEFAULT.batchWindowMs);
+        int batchMaxBytes = getIntParameter(parameters, PARAM_BATCH_MAX_BYTES).orElse(DEFAULT.batchMaxBytes);
+        MessageEncoding encoding = getParameter(parameters, PARAM_ENCODING).flatMap(MessageEncoding::fromParameter).orElse(DEFAULT.encoding);
+        return new ConnectionOptions(batchWindowMs, batchMaxBytes, encoding);
+    }
+
+    private static Optional<String> getParameter(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.getOrDefault(name, Collections.emptyList());
+        if (values.isEmpty()) return Optional.empty();
+        return Optional.ofNullable(values.get(0));
+    }
+
+    private static Optional<Integer> getIntParameter(Map<String, List<String>> parameters, String name) {
+        Optional<String> value = getParameter(parameters, name);
+        if (!value.isPresent()) return Optional.empty();
+        try {
+            return Optional.of(Integer.parseInt(value.get().trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @return True if queued messages are sent together as one array frame
+     */
+    public boolean isBatching() {
+        return batchWindowMs > 0;
+    }
+
+    public int getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public MessageEncoding getEncoding() {
+        return encoding;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty(PARAM_BATCH_WINDOW_MS, batchWindowMs);
+        json.addProperty(PARAM_BATCH_MAX_BYTES, batchMaxBytes);
+        json.addProperty(PARAM_ENCODING, encoding.name().toLowerCase());
+        return json;
+    }
+}
@@ -0,0 +1,252 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonObject;
+import com.iambadatplaying.data.dispatch.EventPriority;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded log of the most recent published events, so reconnecting clients can catch up on what they missed.
+ * The encoded payloads live in a fixed size direct buffer used as a ring, only a small index entry per event stays on the heap.
+ * Besides the JSON text every event keeps the binary encodings that were already produced while publishing it,
+ * so a resuming binary client does not have to encode the event again.
+ * The oldest events are evicted once a new event does not fit anymore.
+ */
+public class EventLog {
+
+    public static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private static final int VARIANT_FULL         = 0;
+    private static final int VARIANT_PATCH        = 1;
+    private static final int VARIANT_FULL_BINARY  = 2;
+    private static final int VARIANT_PATCH_BINARY = 3;
+    private static final int VARIANT_COUNT        = 4;
+
+    public static class Entry {
+        private final long          sequence;
+        private final String[]      topics;
+        private final EventPriority priority;
+        private final int           offset;
+        //Stored back to back in variant order, -1 if a variant is absent
+        private final int[]         lengths;
+
+        private Entry(long sequence, String[] topics, EventPriority priority, int offset, int[] lengths) {
+            this.sequence = sequence;
+            this.topics = topics;
+            this.priority = priority;
+            this.offset = offset;
+            this.lengths = lengths;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String[] getTopics() {
+            return topics;
+        }
+
+        public EventPriority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return False if delta clients receive the full message as well
+         */
+        public boolean hasPatch() {
+            return lengths[VARIANT_PATCH] >= 0;
+        }
+
+        /**
+         * @return True if the binary encoding of the variant was stored
+         */
+        public boolean hasBinary(boolean patch) {
+            return lengths[variant(patch, true)] >= 0;
+        }
+
+        private int getOffset(int variant) {
+            int variantOffset = offset;
+            for (int i = 0; i < variant; i++) {
+                variantOffset += Math.max(lengths[i], 0);
+            }
+            return variantOffset;
+        }
+
+        private int getLength() {
+            return getOffset(VARIANT_COUNT) - offset;
+        }
+    }
+
+    private static int variant(boolean patch, boolean binary) {
+        if (binary) return patch ? VARIANT_PATCH_BINARY : VARIANT_FULL_BINARY;
+        return patch ? VARIANT_PATCH : VARIANT_FULL;
+    }
+
+    private final ByteBuffer        buffer;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    private int  writePosition = 0;
+    private int  usedBytes     = 0;
+    private long lastSequence  = 0;
+    private long evicted       = 0;
+
+    public EventLog() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    public EventLog(int capacityBytes) {
+        if (capacityBytes <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+    }
+
+    /**
+     * @return The sequence number the next appended event will get
+     */
+    public synchronized long getNextSequence() {
+        return lastSequence + 1;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Stores an event under the next sequence number.
+     *
+     * @param fullPayload  Encoded message for regular clients
+     * @param patchPayload Encoded message for delta clients, empty if they receive nothing, null if they receive the full message
+     * @return The sequence number of the event
+     */
+    public synchronized long append(String[] topics, EventPriority priority, ByteBuffer fullPayload, ByteBuffer patchPayload) {
+        return append(topics, priority, fullPayload, patchPayload, null, null);
+    }
+
+    /**
+     * Stores an event under the next sequence number together with its binary encodings.
+     *
+     * @param fullBinaryPayload  Binary encoding of the full message, null if it was not encoded
+     * @param patchBinaryPayload Binary encoding of the patch message, null if it was not encoded
+     * @return The sequence number of the event
+     */
+    public synchronized long append(String[] topics, EventPriority priority, ByteBuffer fullPayload, ByteBuffer patchPayload, ByteBuffer fullBinaryPayload, ByteBuffer patchBinaryPayload) {
+        long sequence = ++lastSequence;
+        ByteBuffer[] payloads = new ByteBuffer[VARIANT_COUNT];
+        payloads[VARIANT_FULL] = fullPayload;
+        payloads[VARIANT_PATCH] = patchPayload;
+        payloads[VARIANT_FULL_BINARY] = fullBinaryPayload;
+        //A binary patch is meaningless if delta clients receive the full message
+        payloads[VARIANT_PATCH_BINARY] = patchPayload == null ? null : patchBinaryPayload;
+        int[] lengths = new int[VARIANT_COUNT];
+        int length = 0;
+        for (int i = 0; i < VARIANT_COUNT; i++) {
+            lengths[i] = payloads[i] == null ? -1 : payloads[i].remaining();
+            length += Math.max(lengths[i], 0);
+        }
+        if (length > buffer.capacity()) {
+            //Can never be resumed, clients that missed it have to start with a snapshot
+            evicted += entries.size();
+            entries.clear();
+            usedBytes = 0;
+            return sequence;
+        }
+        while (buffer.capacity() - usedBytes < length) {
+            usedBytes -= entries.removeFirst().getLength();
+            evicted++;
+        }
+        int offset = writePosition;
+        for (ByteBuffer payload : payloads) {
+            if (payload != null) write(payload);
+        }
+        usedBytes += length;
+        entries.addLast(new Entry(sequence, topics, priority, offset, lengths));
+        return sequence;
+    }
+
+    //Position and limit are set through Buffer, JDK 9+ would otherwise link the ByteBuffer overloads missing on Java 8
+    private void write(ByteBuffer payload) {
+        ByteBuffer source = payload.duplicate();
+        while (source.hasRemaining()) {
+            int chunk = Math.min(source.remaining(), buffer.capacity() - writePosition);
+            ByteBuffer slice = source.duplicate();
+            ((Buffer) slice).limit(slice.position() + chunk);
+            ByteBuffer target = buffer.duplicate();
+            ((Buffer) target).position(writePosition);
+            target.put(slice);
+            ((Buffer) source).position(source.position() + chunk);
+            writePosition = (writePosition + chunk) % buffer.capacity();
+        }
+    }
+
+    private ByteBuffer read(int offset, int length) {
+        byte[] bytes = new byte[length];
+        int start = offset % buffer.capacity();
+        int firstChunk = Math.min(length, buffer.capacity() - start);
+        ByteBuffer source = buffer.duplicate();
+        ((Buffer) source).position(start);
+        source.get(bytes, 0, firstChunk);
+        if (firstChunk < length) {
+            ((Buffer) source).position(0);
+            source.get(bytes, firstChunk, length - firstChunk);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * @return True if every event after the given sequence number is still available
+     */
+    public synchronized boolean canResumeFrom(long sequence) {
+        if (sequence < 0 || sequence > lastSequence) return false;
+        if (sequence == lastSequence) return true;
+        return !entries.isEmpty() && entries.peekFirst().getSequence() <= sequence + 1;
+    }
+
+    /**
+     * @return All events after the given sequence number, oldest first
+     */
+    public synchronized List<Entry> getEntriesAfter(long sequence) {
+        List<Entry> result = new ArrayList<>();
+        Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.getSequence() <= sequence) break;
+            result.add(entry);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * @param patch Whether to read the patch variant, only valid if {@link Entry#hasPatch()}
+     * @return A heap copy of the encoded JSON message
+     */
+    public synchronized ByteBuffer readPayload(Entry entry, boolean patch) {
+        return readPayload(entry, patch, false);
+    }
+
+    /**
+     * @param binary Whether to read the binary encoding, only valid if {@link Entry#hasBinary(boolean)}
+     * @return A heap copy of the encoded message
+     */
+    public synchronized ByteBuffer readPayload(Entry entry, boolean patch, boolean binary) {
+        int variant = variant(patch, binary);
+        if (entry.lengths[variant] < 0) throw new IllegalArgumentException("Variant was not stored");
+        return read(entry.getOffset(variant), entry.lengths[variant]);
+    }
+
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("capacityBytes", buffer.capacity());
+        stats.addProperty("usedBytes", usedBytes);
+        stats.addProperty("entries", entries.size());
+        stats.addProperty("lastSequence", lastSequence);
+        stats.addProperty("oldestSequence", entries.isEmpty() ? lastSequence + 1 : entries.peekFirst().getSequence());
+        stats.addProperty("evicted", evicted);
+        return stats;
+    }
+}
@@ -0,0 +1,163 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonObject;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A single Server-Sent Events subscriber. Frames are written with non-blocking servlet output,
+ * so an idle subscriber holds no thread and a stalled one only its queued frames.
+ */
+public class EventStreamConnection implements WriteListener, AsyncListener {
+
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final AsyncContext                    asyncContext;
+    private final ServletOutputStream             out;
+    private final Consumer<EventStreamConnection> onClose;
+    //Null if the subscriber receives every event
+    private final Set<String>                     topics;
+
+    private final ArrayDeque<byte[]> queue       = new ArrayDeque<>();
+    private       long               queuedBytes = 0;
+    private       boolean            needsFlush  = false;
+    private       boolean            closed      = false;
+
+    private long sentFrames = 0;
+    private long sentBytes  = 0;
+
+    /**
+     * @param filtered Whether the subscriber only receives the topics added with {@link #addTopic(String)}
+     */
+    public EventStreamConnection(AsyncContext asyncContext, boolean filtered, Consumer<EventStreamConnection> onClose) throws IOException {
+        this.asyncContext = asyncContext;
+        this.out = asyncContext.getResponse().getOutputStream();
+        this.onClose = onClose;
+        this.topics = filtered ? ConcurrentHashMap.newKeySet() : null;
+        asyncContext.addListener(this);
+        out.setWriteListener(this);
+    }
+
+    public void addTopic(String topic) {
+        if (topics != null) topics.add(topic);
+    }
+
+    public boolean isFiltered() {
+        return topics != null;
+    }
+
+    /**
+     * @return True if the subscriber receives events published to any of the topics
+     */
+    public boolean accepts(String[] eventTopics) {
+        if (topics == null) return true;
+        for (String topic : eventTopics) {
+            if (topics.contains(topic)) return true;
+        }
+        return false;
+    }
+
+    public Collection<String> getTopics() {
+        return topics == null ? Collections.singleton(TopicIndex.TOPIC_ALL) : topics;
+    }
+
+    /**
+     * Queues an encoded frame, a subscriber that falls too far behind is disconnected and has to resume
+     */
+    public synchronized void send(byte[] frame) {
+        if (closed) return;
+        if (queuedBytes + frame.length > MAX_QUEUED_BYTES) {
+            close();
+            return;
+        }
+        queue.offer(frame);
+        queuedBytes += frame.length;
+        write();
+    }
+
+    //Must be called while holding the lock
+    private void write() {
+        try {
+            while (!closed && out.isReady()) {
+                byte[] frame = queue.poll();
+                if (frame == null) {
+                    if (!needsFlush) return;
+                    needsFlush = false;
+                    out.flush();
+                    continue;
+                }
+                queuedBytes -= frame.length;
+                out.write(frame);
+                needsFlush = true;
+                sentFrames++;
+                sentBytes += frame.length;
+            }
+        } catch (IOException | IllegalStateException e) {
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        write();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            //Already completed by the container
+        }
+        onClose.accept(this);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("remoteAddress", asyncContext.getRequest().getRemoteAddr());
+        stats.addProperty("queuedFrames", queue.size());
+        stats.addProperty("queuedBytes", queuedBytes);
+        stats.addProperty("sentFrames", sentFrames);
+        stats.addProperty("sentBytes", sentBytes);
+        stats.addProperty("topics", String.join(",", getTopics()));
+        return stats;
+    }
+}
@@ -0,0 +1,105 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans published events out to the Server-Sent Events subscribers, every frame is encoded once and shared.
+ * The event id is the sequence number of the event, the event name its most general topic.
+ */
+public class EventStreamHub {
+
+    private static final byte[] KEEP_ALIVE_FRAME = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final List<EventStreamConnection> connections = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong frames     = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+
+    public void add(EventStreamConnection connection) {
+        connections.add(connection);
+    }
+
+    public void remove(EventStreamConnection connection) {
+        connections.remove(connection);
+    }
+
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+
+    /**
+     * @param payload The UTF-8 encoded message
+     */
+    public void publish(long sequence, String[] topics, ByteBuffer payload) {
+        if (connections.isEmpty()) return;
+        byte[] frame = null;
+        for (EventStreamConnection connection : connections) {
+            if (!connection.accepts(topics)) continue;
+            if (frame == null) {
+                frame = createFrame(sequence, getEventName(topics), StandardCharsets.UTF_8.decode(payload.duplicate()).toString());
+                frames.incrementAndGet();
+            }
+            connection.send(frame);
+            deliveries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends an unnamed event to every subscriber
+     */
+    public void sendToAll(String message) {
+        sendFrame(createFrame(0, null, message));
+    }
+
+    /**
+     * Sends a comment every subscriber ignores, it only keeps idle connections and proxies from timing out
+     */
+    public void sendKeepAlive() {
+        sendFrame(KEEP_ALIVE_FRAME);
+    }
+
+    private void sendFrame(byte[] frame) {
+        for (EventStreamConnection connection : connections) {
+            connection.send(frame);
+        }
+    }
+
+    public static String getEventName(String[] topics) {
+        return topics.length == 0 ? null : topics[0];
+    }
+
+    /**
+     * @param sequence Omitted if not positive, so the subscriber keeps its last event id
+     * @param name     Omitted if null, the subscriber sees a plain message event then
+     */
+    public static byte[] createFrame(long sequence, String name, String data) {
+        StringBuilder frame = new StringBuilder(data.length() + 48);
+        if (sequence > 0) frame.append("id: ").append(sequence).append('\n');
+        if (name != null) frame.append("event: ").append(name).append('\n');
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            frame.append("data: ").append(line).append('\n');
+        }
+        frame.append('\n');
+        return frame.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("connections", connections.size());
+        stats.addProperty("frames", frames.get());
+        stats.addProperty("deliveries", deliveries.get());
+        JsonArray clients = new JsonArray();
+        for (EventStreamConnection connection : connections) {
+            clients.add(connection.getStats());
+        }
+        stats.add("clients", clients);
+        return stats;
+    }
+}
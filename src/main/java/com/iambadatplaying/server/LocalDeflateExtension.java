@@ -0,0 +1,146 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonObject;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate that applies the {@link CompressionPolicy} of the local server and tracks the compression ratio
+ * and CPU time of its connection. Registered in place of Jetty's own implementation.
+ */
+public class LocalDeflateExtension extends PerMessageDeflateExtension {
+
+    public static final String NAME                             = "permessage-deflate";
+    public static final String PARAM_SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    public static final String PARAM_CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The accepted offer of a single connection. Jetty configures the extension it creates for the connection
+     * with this very instance, which lets the connection reach its extension without Jetty's internal classes.
+     */
+    public static class NegotiatedConfig extends ExtensionConfig {
+        private final    CompressionPolicy     policy;
+        private volatile LocalDeflateExtension extension = null;
+
+        public NegotiatedConfig(ExtensionConfig offer, CompressionPolicy policy) {
+            super(offer);
+            this.policy = policy;
+            if (!policy.isServerContextTakeover()) setParameter(PARAM_SERVER_NO_CONTEXT_TAKEOVER);
+            if (!policy.isClientContextTakeover()) setParameter(PARAM_CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+
+        /**
+         * @return The extension of the connection, empty until Jetty created it
+         */
+        public Optional<LocalDeflateExtension> getExtension() {
+            return Optional.ofNullable(extension);
+        }
+    }
+
+    private volatile CompressionPolicy policy   = CompressionPolicy.DEFAULT;
+    private          Deflater          deflater = null;
+
+    private final AtomicLong compressedMessages   = new AtomicLong();
+    private final AtomicLong uncompressedMessages = new AtomicLong();
+    private final AtomicLong bytesIn              = new AtomicLong();
+    private final AtomicLong bytesOut             = new AtomicLong();
+    private final AtomicLong bytesSkipped         = new AtomicLong();
+    private final AtomicLong cpuNanos             = new AtomicLong();
+
+    //Start of the current compression step, the flusher compresses one chunk at a time
+    private volatile long stepStartNanos = 0;
+
+    @Override
+    public void setConfig(ExtensionConfig config) {
+        super.setConfig(config);
+        if (!(config instanceof NegotiatedConfig)) return;
+        NegotiatedConfig negotiatedConfig = (NegotiatedConfig) config;
+        policy = negotiatedConfig.policy;
+        negotiatedConfig.extension = this;
+    }
+
+    @Override
+    public synchronized Deflater getDeflater() {
+        if (deflater == null) deflater = new Deflater(policy.getLevel(), true);
+        return deflater;
+    }
+
+    @Override
+    public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+        if (frame.getType().isData() && frame.isFin() && frame.getPayloadLength() < policy.getMinMessageBytes()) {
+            //Sent as an uncompressed message, the local websocket never has a second message in the flusher that could be overtaken
+            uncompressedMessages.incrementAndGet();
+            bytesSkipped.addAndGet(frame.getPayloadLength());
+            getNextOutgoing().outgoingFrame(frame, callback, batchMode);
+            return;
+        }
+        if (frame.getType().isData()) {
+            if (frame.getType() != Frame.Type.CONTINUATION) compressedMessages.incrementAndGet();
+            bytesIn.addAndGet(frame.getPayloadLength());
+        }
+        stepStartNanos = getCpuTimeNanos();
+        super.outgoingFrame(frame, callback, batchMode);
+    }
+
+    @Override
+    protected void nextOutgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+        //Called right after a chunk was compressed, on the thread that compressed it
+        cpuNanos.addAndGet(Math.max(0, getCpuTimeNanos() - stepStartNanos));
+        if (frame.getType().isData()) bytesOut.addAndGet(frame.getPayloadLength());
+        super.nextOutgoingFrame(frame, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                stepStartNanos = getCpuTimeNanos();
+                callback.writeFailed(x);
+            }
+
+            @Override
+            public void writeSuccess() {
+                //The flusher compresses the next chunk from within this callback
+                stepStartNanos = getCpuTimeNanos();
+                callback.writeSuccess();
+            }
+        }, batchMode);
+    }
+
+    private static long getCpuTimeNanos() {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        return System.nanoTime();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        synchronized (this) {
+            if (deflater != null) deflater.end();
+            deflater = null;
+        }
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        stats.addProperty("level", policy.getLevel());
+        stats.addProperty("minMessageBytes", policy.getMinMessageBytes());
+        stats.addProperty("compressedMessages", compressedMessages.get());
+        stats.addProperty("uncompressedMessages", uncompressedMessages.get());
+        stats.addProperty("bytesIn", in);
+        stats.addProperty("bytesOut", out);
+        stats.addProperty("bytesSkipped", bytesSkipped.get());
+        stats.addProperty("ratio", in == 0 ? 1d : (double) out / in);
+        stats.addProperty("cpuMs", cpuNanos.get() / 1_000_000d);
+        return stats;
+    }
+}
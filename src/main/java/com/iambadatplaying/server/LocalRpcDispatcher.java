@@ -0,0 +1,188 @@
+package com.iambadatplaying.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.iambadatplaying.Managable;
+import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
+import com.iambadatplaying.data.dispatch.EventPriority;
+import com.iambadatplaying.logger.LogLevel;
+import com.iambadatplaying.logger.Loggable;
+import com.iambadatplaying.logger.SimpleLogger;
+import com.iambadatplaying.rcconnection.RCConnectionManager;
+import com.iambadatplaying.rcconnection.RCConnectionState;
+import com.iambadatplaying.server.rest.servlets.ServletUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes RC API calls that local websocket clients send as requests on their connection,
+ * e.g. {@code {"type":"request","id":1,"method":"GET","path":"/riotclient/app-name"}}.
+ * Requests run concurrently, every response carries the id of its request and is sent as soon as it is available.
+ */
+public class LocalRpcDispatcher implements Managable, Loggable {
+
+    public static final String TYPE_REQUEST  = "request";
+    public static final String TYPE_RESPONSE = "response";
+
+    public static final String KEY_ID     = "id";
+    public static final String KEY_METHOD = "method";
+    public static final String KEY_PATH   = "path";
+    public static final String KEY_BODY   = "body";
+    public static final String KEY_STATUS = "status";
+    public static final String KEY_ERROR  = "error";
+
+    public static final int MAX_IN_FLIGHT_PER_CLIENT = 64;
+
+    private static final int WORKER_THREADS             = 8;
+    private static final int STATUS_BAD_REQUEST         = 400;
+    private static final int STATUS_TOO_MANY_REQUESTS   = 429;
+    private static final int STATUS_BAD_GATEWAY         = 502;
+    private static final int STATUS_SERVICE_UNAVAILABLE = 503;
+
+    private final Starter starter;
+
+    private volatile ExecutorService executor = null;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed   = new AtomicLong();
+
+    public LocalRpcDispatcher(Starter starter) {
+        this.starter = starter;
+    }
+
+    /**
+     * Answers malformed requests right away, everything else is executed on a worker
+     *
+     * @param inFlight Requests of this client that have not been answered yet
+     */
+    public void dispatch(LocalWebsocket websocket, JsonObject request, AtomicInteger inFlight) {
+        requests.incrementAndGet();
+        JsonElement id = request.has(KEY_ID) ? request.get(KEY_ID) : JsonNull.INSTANCE;
+        Optional<RCConnectionManager.Method> method = Util.getOptString(request, KEY_METHOD).flatMap(RCConnectionManager.Method::fromString);
+        Optional<String> path = Util.getOptString(request, KEY_PATH).filter(p -> p.startsWith("/"));
+        if (id.isJsonNull() || !method.isPresent() || !path.isPresent()) {
+            reject(websocket, id, STATUS_BAD_REQUEST, "Request needs an id, a supported method and an absolute path");
+            return;
+        }
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT_PER_CLIENT) {
+            inFlight.decrementAndGet();
+            reject(websocket, id, STATUS_TOO_MANY_REQUESTS, "Too many requests in flight");
+            return;
+        }
+
+        String body = getBody(request);
+        ExecutorService currentExecutor = executor;
+        try {
+            if (currentExecutor == null) throw new RejectedExecutionException();
+            currentExecutor.execute(() -> {
+                try {
+                    websocket.sendMessage(execute(id, method.get(), path.get(), body), EventPriority.HIGH);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            reject(websocket, id, STATUS_SERVICE_UNAVAILABLE, "Server is shutting down");
+        }
+    }
+
+    private static String getBody(JsonObject request) {
+        JsonElement body = request.get(KEY_BODY);
+        if (body == null || body.isJsonNull()) return null;
+        //A string body is sent as is, anything else as JSON
+        if (body.isJsonPrimitive() && body.getAsJsonPrimitive().isString()) return body.getAsString();
+        return body.toString();
+    }
+
+    private JsonObject execute(JsonElement id, RCConnectionManager.Method method, String path, String body) {
+        if (starter.getRCConnector().getConnectionState() != RCConnectionState.CONNECTED) {
+            rejected.incrementAndGet();
+            return createResponse(id, STATUS_SERVICE_UNAVAILABLE, JsonNull.INSTANCE, "Riot Client connection not established");
+        }
+        HttpsURLConnection connection = starter.getRCConnector().getRCConnectionManager().buildConnection(method, path, body);
+        Optional<Integer> status = Optional.ofNullable(connection).flatMap(Util::getResponseCode);
+        if (!status.isPresent()) {
+            failed.incrementAndGet();
+            return createResponse(id, STATUS_BAD_GATEWAY, JsonNull.INSTANCE, "Failed to establish connection");
+        }
+        String responseText = Util.inputStreamToString(ServletUtils.handleStreamResponse(connection)).orElse("");
+        connection.disconnect();
+        return createResponse(id, status.get(), toBody(responseText.trim()), null);
+    }
+
+    private static JsonElement toBody(String responseText) {
+        if (responseText.isEmpty()) return JsonNull.INSTANCE;
+        return Util.parseJson(responseText).orElseGet(() -> new JsonPrimitive(responseText));
+    }
+
+    private void reject(LocalWebsocket websocket, JsonElement id, int status, String error) {
+        rejected.incrementAndGet();
+        websocket.sendMessage(createResponse(id, status, JsonNull.INSTANCE, error), EventPriority.HIGH);
+    }
+
+    private static JsonObject createResponse(JsonElement id, int status, JsonElement body, String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty(LocalWebsocket.KEY_TYPE, TYPE_RESPONSE);
+        response.add(KEY_ID, id);
+        response.addProperty(KEY_STATUS, status);
+        response.add(KEY_BODY, body);
+        if (error != null) response.addProperty(KEY_ERROR, error);
+        return response;
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("requests", requests.get());
+        stats.addProperty("rejected", rejected.get());
+        stats.addProperty("failed", failed.get());
+        return stats;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (executor != null) return;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "LocalRpcDispatcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        newExecutor.allowCoreThreadTimeOut(true);
+        executor = newExecutor;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    @Override
+    public void log(Object o) {
+        log(LogLevel.DEBUG, o);
+    }
+
+    @Override
+    public void log(LogLevel level, Object o) {
+        SimpleLogger.getInstance().log(level, this.getClass().getSimpleName() + ": " + o);
+    }
+}
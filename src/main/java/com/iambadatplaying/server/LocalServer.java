@@ -1,12 +1,19 @@
 package com.iambadatplaying.server;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.iambadatplaying.EXIT_CODE;
 import com.iambadatplaying.Managable;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.data.DataManger;
+import com.iambadatplaying.data.dispatch.EventPriority;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
 import com.iambadatplaying.modules.BasicModule;
+import com.iambadatplaying.rcconnection.RCConnector;
+import com.iambadatplaying.rcconnection.SubscriptionPlanner;
 import com.iambadatplaying.server.rest.BasicModuleContextHandler;
 import com.iambadatplaying.server.rest.ProxyHandler;
 import com.iambadatplaying.server.rest.RestContextHandler;
@@ -17,6 +24,7 @@ import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
 import org.eclipse.jetty.websocket.server.WebSocketHandler;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
@@ -27,9 +35,18 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class LocalServer implements Loggable, Managable {
@@ -38,13 +55,39 @@ public class LocalServer implements Loggable, Managable {
     public static final int DEBUG_FRONTEND_PORT = 3000;
     public static final int DEBUG_FRONTEND_PORT_V2 = 3001;
 
+    private static final int KEEP_ALIVE_INTERVAL_MS              = 290000;
+    //Proxies tend to close idle responses much sooner than websockets
+    private static final int EVENT_STREAM_KEEP_ALIVE_INTERVAL_MS = 15000;
+
+    public static final String KEY_SEQUENCE = "seq";
+
+    private static final String SUBSCRIPTION_INTEREST_OWNER = "LocalClients";
+
     private static final Pattern localHostPattern = Starter.isDev ?
             Pattern.compile("^(http://)?(localhost|127\\.0\\.0\\.1):(" + APPLICATION_PORT + "|" + DEBUG_FRONTEND_PORT + "|" + DEBUG_FRONTEND_PORT_V2 + ")(/)?$") :
             Pattern.compile("^(http://)?(localhost|127\\.0\\.0\\.1):(" + APPLICATION_PORT + ")(/)?$");
     private static final ArrayList<Pattern> allowedOrigins = new ArrayList<>();
 
     private final Starter starter;
-    private final List<LocalWebsocket> websocketConnections = Collections.synchronizedList(new ArrayList<>());
+    private final List<LocalWebsocket>       websocketConnections = new CopyOnWriteArrayList<>();
+    private final LocalWebsocketSender       sender               = new LocalWebsocketSender();
+    private final TopicIndex<LocalWebsocket> topicIndex           = new TopicIndex<>();
+    private final LocalRpcDispatcher         rpcDispatcher;
+    private final EventStreamHub             eventStreamHub       = new EventStreamHub();
+
+    private final AtomicLong broadcasts            = new AtomicLong();
+    private final AtomicLong broadcastDeliveries   = new AtomicLong();
+    private final AtomicLong encodedBroadcastBytes = new AtomicLong();
+    private final AtomicLong liveBroadcasts        = new AtomicLong();
+    private final AtomicLong liveBroadcastBytes    = new AtomicLong();
+    private final AtomicLong replayedEvents        = new AtomicLong();
+
+    //Sequence numbers are assigned and messages enqueued under this lock, so every client sees them in order
+    private final Object   publishLock = new Object();
+    private final EventLog eventLog    = new EventLog();
+
+    private volatile ClientQueuePolicy clientQueuePolicy = ClientQueuePolicy.DEFAULT;
+    private volatile CompressionPolicy compressionPolicy = CompressionPolicy.DEFAULT;
     private boolean running = false;
 
     private Server server = null;
@@ -101,11 +144,39 @@ public class LocalServer implements Loggable, Managable {
 
     public LocalServer(Starter starter) {
         this.starter = starter;
+        this.rpcDispatcher = new LocalRpcDispatcher(starter);
+        topicIndex.addChangeListener(this::updateSubscriptionInterests);
+    }
+
+    /**
+     * Hands the URI patterns behind every topic a local client subscribed to to the subscription planner
+     */
+    private void updateSubscriptionInterests() {
+        DataManger dataManger = starter.getDataManger();
+        RCConnector rcConnector = starter.getRCConnector();
+        if (dataManger == null || rcConnector == null) return;
+        SubscriptionPlanner planner = rcConnector.getRCClient().getSubscriptionPlanner();
+        if (websocketConnections.isEmpty()) {
+            planner.removeInterests(SUBSCRIPTION_INTEREST_OWNER);
+            return;
+        }
+        Set<Pattern> patterns = new HashSet<>();
+        if (topicIndex.getUnfilteredCount() > 0) {
+            patterns.addAll(dataManger.getURIPatterns());
+        }
+        for (String topic : topicIndex.getSubscribedTopics()) {
+            dataManger.getEventManager(TopicIndex.getBaseTopic(topic)).ifPresent(manager -> patterns.add(manager.getURIPattern()));
+        }
+        planner.setInterests(SUBSCRIPTION_INTEREST_OWNER, patterns);
     }
 
     @Override
     public void start() {
         running = true;
+        sender.start();
+        rpcDispatcher.start();
+        sender.scheduleAtFixedRate(() -> sendToAllWebsockets(""), KEEP_ALIVE_INTERVAL_MS);
+        sender.scheduleAtFixedRate(eventStreamHub::sendKeepAlive, EVENT_STREAM_KEEP_ALIVE_INTERVAL_MS);
         server =  new Server(APPLICATION_PORT);
         server.setStopAtShutdown(true);
         setupServerHandlers();
@@ -127,17 +198,334 @@ public class LocalServer implements Loggable, Managable {
     }
 
     public void sendToAllWebsockets(String message) {
+        sendToAllWebsockets(message, EventPriority.BULK);
+    }
+
+    /**
+     * Sends the message to every connection regardless of its subscriptions
+     */
+    public void sendToAllWebsockets(String message, EventPriority priority) {
+        //The websocket keep-alive is no event, the stream sends its own keep-alive comments
+        if (!message.isEmpty()) eventStreamHub.sendToAll(message);
+        if (websocketConnections.isEmpty()) return;
+        BroadcastMessage broadcastMessage = new BroadcastMessage(message, priority, null);
         for (LocalWebsocket websocket : websocketConnections) {
-            websocket.sendMessage(message);
+            websocket.sendMessage(broadcastMessage.getEncoded(websocket.getEncoding()));
+            broadcastDeliveries.incrementAndGet();
+        }
+        broadcastMessage.release();
+    }
+
+    /**
+     * Sends the message to every connection subscribed to at least one of the topics
+     */
+    public void publish(String message, EventPriority priority, String... topics) {
+        publish(new BroadcastMessage(message, priority, null), null, false, topics);
+    }
+
+    /**
+     * Sends the patch event to subscribers that asked for deltas and the full event to everyone else.
+     * Every encoding is produced at most once, straight from the JSON tree.
+     *
+     * @param patchEvent May be null if there is nothing new for delta subscribers
+     */
+    public void publish(JsonElement event, JsonElement patchEvent, EventPriority priority, String... topics) {
+        publish(new BroadcastMessage(event, priority, null), patchEvent == null ? null : new BroadcastMessage(patchEvent, priority, null), true, topics);
+    }
+
+    private void publish(BroadcastMessage message, BroadcastMessage patchMessage, boolean hasPatchVariant, String[] topics) {
+        EventPriority priority = message.priority;
+        synchronized (publishLock) {
+            long sequence = eventLog.getNextSequence();
+            //Full states of the most specific topic supersede each other, patches never do
+            String conflationKey = topics.length == 0 ? null : topics[topics.length - 1];
+            BroadcastMessage fullMessage = message.withSequence(sequence, conflationKey);
+            BroadcastMessage deltaMessage = patchMessage == null ? null : patchMessage.withSequence(sequence, null);
+            ByteBuffer deltaPayload = null;
+            if (hasPatchVariant) deltaPayload = deltaMessage == null ? ByteBuffer.allocate(0) : deltaMessage.getEncoded(MessageEncoding.JSON).getPayload();
+            ByteBuffer fullPayload = fullMessage.getEncoded(MessageEncoding.JSON).getPayload();
+            eventStreamHub.publish(sequence, topics, fullPayload);
+
+            for (LocalWebsocket websocket : topicIndex.getRecipients(topics)) {
+                if (hasPatchVariant && websocket.isDeltaMode()) {
+                    if (deltaMessage == null) continue;
+                    websocket.sendMessage(deltaMessage.getEncoded(websocket.getEncoding()));
+                } else {
+                    websocket.sendMessage(fullMessage.getEncoded(websocket.getEncoding()));
+                }
+                broadcastDeliveries.incrementAndGet();
+            }
+            //Binary encodings are only logged if a recipient needed them anyway, resume encodes the others on demand
+            ByteBuffer fullBinaryPayload = fullMessage.getEncodedPayload(MessageEncoding.CBOR).orElse(null);
+            ByteBuffer deltaBinaryPayload = null;
+            if (hasPatchVariant) {
+                deltaBinaryPayload = deltaMessage == null ? ByteBuffer.allocate(0) : deltaMessage.getEncodedPayload(MessageEncoding.CBOR).orElse(null);
+            }
+            eventLog.append(topics, priority, fullPayload, deltaPayload, fullBinaryPayload, deltaBinaryPayload);
+            fullMessage.release();
+            if (deltaMessage != null) deltaMessage.release();
         }
     }
 
+    /**
+     * Subscribes the connection to the topics and replays every matching event it missed after the sequence number.
+     * No event can be published in between, so the client continues exactly where it left off.
+     *
+     * @return False if the missed events are no longer available, nothing is subscribed in that case
+     */
+    public boolean resume(LocalWebsocket websocket, Collection<String> topics, long sequence) {
+        synchronized (publishLock) {
+            if (!eventLog.canResumeFrom(sequence)) return false;
+            for (String topic : topics) {
+                topicIndex.subscribe(websocket, topic);
+            }
+            for (EventLog.Entry entry : eventLog.getEntriesAfter(sequence)) {
+                if (!topicIndex.isRecipient(websocket, entry.getTopics())) continue;
+                boolean patch = entry.hasPatch() && websocket.isDeltaMode();
+                boolean binary = websocket.getEncoding().isBinary();
+                ByteBuffer payload = eventLog.readPayload(entry, patch, binary && entry.hasBinary(patch));
+                if (!payload.hasRemaining()) continue;
+                OutboundMessage replayedMessage;
+                if (binary && entry.hasBinary(patch)) {
+                    replayedMessage = OutboundMessage.ofBinary(payload, entry.getPriority(), null, null);
+                } else if (binary) {
+                    String text = StandardCharsets.UTF_8.decode(payload).toString();
+                    replayedMessage = OutboundMessage.ofBinary(ByteBuffer.wrap(CborEncoder.encodeMessage(text)), entry.getPriority(), null, null);
+                } else {
+                    replayedMessage = OutboundMessage.ofEncoded(payload, entry.getPriority(), null);
+                }
+                websocket.sendMessage(replayedMessage);
+                replayedMessage.release();
+                replayedEvents.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Registers a Server-Sent Events subscriber. If it can resume, it is subscribed to the topics and receives every
+     * matching event it missed, no event can be published in between.
+     *
+     * @return True if the subscriber resumed, otherwise it receives new events only
+     */
+    public boolean openEventStream(EventStreamConnection connection, Collection<String> topics, OptionalLong lastEventId) {
+        synchronized (publishLock) {
+            boolean resumed = lastEventId.isPresent() && eventLog.canResumeFrom(lastEventId.getAsLong());
+            if (resumed) {
+                topics.forEach(connection::addTopic);
+                for (EventLog.Entry entry : eventLog.getEntriesAfter(lastEventId.getAsLong())) {
+                    if (!connection.accepts(entry.getTopics())) continue;
+                    String message = StandardCharsets.UTF_8.decode(eventLog.readPayload(entry, false)).toString();
+                    connection.send(EventStreamHub.createFrame(entry.getSequence(), EventStreamHub.getEventName(entry.getTopics()), message));
+                    replayedEvents.incrementAndGet();
+                }
+            }
+            eventStreamHub.add(connection);
+            return resumed;
+        }
+    }
+
+    public EventStreamHub getEventStreamHub() {
+        return eventStreamHub;
+    }
+
+    /**
+     * @return The sequence number of the latest published event
+     */
+    public long getLastSequence() {
+        return eventLog.getLastSequence();
+    }
+
+    /**
+     * Adds the sequence number as first member of a JSON object message, other messages are returned as is
+     */
+    public static String stampSequence(String message, long sequence) {
+        if (message == null || !message.startsWith("{") || !message.endsWith("}")) return message;
+        String members = message.substring(1).trim();
+        String separator = "}".equals(members) ? "" : ",";
+        return "{\"" + KEY_SEQUENCE + "\":" + sequence + separator + message.substring(1);
+    }
+
+    /**
+     * @return A copy of the event object with the sequence number as first member, other events are returned as is
+     */
+    private static JsonElement withSequence(JsonElement event, long sequence) {
+        if (!event.isJsonObject()) return event;
+        JsonObject stamped = new JsonObject();
+        stamped.addProperty(KEY_SEQUENCE, sequence);
+        for (Map.Entry<String, JsonElement> entry : event.getAsJsonObject().entrySet()) {
+            stamped.add(entry.getKey(), entry.getValue());
+        }
+        return stamped;
+    }
+
+    /**
+     * One message to be sent to many connections, encoded at most once per encoding.
+     * Either built from a JSON tree or from text that is only parsed if a binary client needs it.
+     */
+    private class BroadcastMessage {
+        private final JsonElement     event;
+        private final String          message;
+        private final EventPriority   priority;
+        private final String          conflationKey;
+        private       OutboundMessage text   = null;
+        private       OutboundMessage binary = null;
+
+        private BroadcastMessage(JsonElement event, EventPriority priority, String conflationKey) {
+            this.event = event;
+            this.message = null;
+            this.priority = priority;
+            this.conflationKey = conflationKey;
+        }
+
+        private BroadcastMessage(String message, EventPriority priority, String conflationKey) {
+            this.event = null;
+            this.message = message;
+            this.priority = priority;
+            this.conflationKey = conflationKey;
+        }
+
+        private BroadcastMessage withSequence(long sequence, String conflationKey) {
+            if (event != null) return new BroadcastMessage(LocalServer.withSequence(event, sequence), priority, conflationKey);
+            return new BroadcastMessage(stampSequence(message, sequence), priority, conflationKey);
+        }
+
+        private byte[] encodeBinary() {
+            return event != null ? CborEncoder.encode(event) : CborEncoder.encodeMessage(message);
+        }
+
+        private String encodeText() {
+            return event != null ? event.toString() : message;
+        }
+
+        private OutboundMessage getEncoded(MessageEncoding encoding) {
+            if (encoding.isBinary()) {
+                if (binary == null) {
+                    binary = trackBroadcast(OutboundMessage.ofBinary(ByteBuffer.wrap(encodeBinary()), priority, conflationKey, released -> untrackBroadcast(released)));
+                }
+                return binary;
+            }
+            if (text == null) {
+                text = trackBroadcast(OutboundMessage.ofText(encodeText(), priority, conflationKey, released -> untrackBroadcast(released)));
+            }
+            return text;
+        }
+
+        /**
+         * @return The payload if the message was already encoded this way
+         */
+        private Optional<ByteBuffer> getEncodedPayload(MessageEncoding encoding) {
+            return Optional.ofNullable(encoding.isBinary() ? binary : text).map(OutboundMessage::getPayload);
+        }
+
+        private void release() {
+            if (text != null) text.release();
+            if (binary != null) binary.release();
+        }
+    }
+
+    private OutboundMessage trackBroadcast(OutboundMessage outboundMessage) {
+        broadcasts.incrementAndGet();
+        liveBroadcasts.incrementAndGet();
+        liveBroadcastBytes.addAndGet(outboundMessage.getSize());
+        encodedBroadcastBytes.addAndGet(outboundMessage.getSize());
+        return outboundMessage;
+    }
+
+    private void untrackBroadcast(OutboundMessage released) {
+        liveBroadcasts.decrementAndGet();
+        liveBroadcastBytes.addAndGet(-released.getSize());
+    }
+
+    public JsonObject getWebsocketStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("connections", websocketConnections.size());
+        stats.addProperty("unfilteredConnections", topicIndex.getUnfilteredCount());
+        stats.addProperty("subscribedTopics", topicIndex.getTopicCount());
+        stats.addProperty("broadcasts", broadcasts.get());
+        stats.addProperty("broadcastDeliveries", broadcastDeliveries.get());
+        stats.addProperty("encodedBroadcastBytes", encodedBroadcastBytes.get());
+        stats.addProperty("liveBroadcasts", liveBroadcasts.get());
+        stats.addProperty("liveBroadcastBytes", liveBroadcastBytes.get());
+        stats.addProperty("replayedEvents", replayedEvents.get());
+        stats.add("eventLog", eventLog.getStats());
+        stats.add("rpc", rpcDispatcher.getStats());
+        stats.add("eventStreams", eventStreamHub.getStats());
+        JsonArray clients = new JsonArray();
+        for (LocalWebsocket websocket : websocketConnections) {
+            clients.add(websocket.getStats());
+        }
+        stats.add("clients", clients);
+        return stats;
+    }
+
+    public ClientQueuePolicy getClientQueuePolicy() {
+        return clientQueuePolicy;
+    }
+
+    /**
+     * Applies to connections opened afterwards
+     */
+    public void setClientQueuePolicy(ClientQueuePolicy clientQueuePolicy) {
+        this.clientQueuePolicy = clientQueuePolicy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Applies to connections opened afterwards
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Accepts the client's first permessage-deflate offer with the server's context takeover settings, other extensions are declined
+     */
+    private List<ExtensionConfig> negotiateExtensions(List<ExtensionConfig> offered) {
+        List<ExtensionConfig> accepted = new ArrayList<>();
+        CompressionPolicy policy = compressionPolicy;
+        if (!policy.isEnabled()) return accepted;
+        for (ExtensionConfig offer : offered) {
+            if (!LocalDeflateExtension.NAME.equals(offer.getName())) continue;
+            accepted.add(new LocalDeflateExtension.NegotiatedConfig(offer, policy));
+            break;
+        }
+        return accepted;
+    }
+
+    public LocalWebsocketSender getSender() {
+        return sender;
+    }
+
+    public LocalRpcDispatcher getRpcDispatcher() {
+        return rpcDispatcher;
+    }
+
+    public TopicIndex<LocalWebsocket> getTopicIndex() {
+        return topicIndex;
+    }
+
     public void removeWebsocketConnection(LocalWebsocket websocket) {
         websocketConnections.remove(websocket);
+        topicIndex.remove(websocket);
     }
 
     public void addWebsocketConnection(LocalWebsocket websocket) {
         websocketConnections.add(websocket);
+        topicIndex.register(websocket);
+    }
+
+    /**
+     * Replaces Jetty's permessage-deflate with our own, so small messages can skip compression.
+     * Jetty 9.4 deprecated its extension factory without offering another way to register an extension,
+     * the registration is kept here until the server moves to Jetty 10's WebSocket API.
+     */
+    @SuppressWarnings("deprecation")
+    private static void registerDeflateExtension(WebSocketServletFactory factory) {
+        factory.getExtensionFactory().register(LocalDeflateExtension.NAME, LocalDeflateExtension.class);
     }
 
     private void setupServerHandlers() {
@@ -150,6 +538,7 @@ public class LocalServer implements Loggable, Managable {
         WebSocketHandler wsHandler = new WebSocketHandler() {
             @Override
             public void configure(WebSocketServletFactory factory) {
+                registerDeflateExtension(factory);
                 factory.setCreator((req, resp) -> {
                     if (filterWebSocketRequest(req)) {
                         try {
@@ -160,7 +549,14 @@ public class LocalServer implements Loggable, Managable {
                         return null;
                     }
 
-                    return new LocalWebsocket(starter);
+                    List<ExtensionConfig> extensions = negotiateExtensions(req.getExtensions());
+                    resp.setExtensions(extensions);
+                    LocalDeflateExtension.NegotiatedConfig deflateConfig = extensions.stream()
+                            .filter(LocalDeflateExtension.NegotiatedConfig.class::isInstance)
+                            .map(LocalDeflateExtension.NegotiatedConfig.class::cast)
+                            .findFirst()
+                            .orElse(null);
+                    return new LocalWebsocket(starter, ConnectionOptions.fromParameters(req.getParameterMap()), deflateConfig);
                 });
             }
         };
@@ -298,6 +694,8 @@ public class LocalServer implements Loggable, Managable {
             log(LogLevel.ERROR, e);
         }
         server = null;
+        rpcDispatcher.stop();
+        sender.stop();
         log("Stopped Server");
     }
 
@@ -1,59 +1,107 @@
 package com.iambadatplaying.server;
 
-import com.iambadatplaying.Managable;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
+import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.data.dispatch.EventPriority;
 import com.iambadatplaying.logger.LogLevel;
 import com.iambadatplaying.logger.Loggable;
 import com.iambadatplaying.logger.SimpleLogger;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.*;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @WebSocket
 public class LocalWebsocket implements Loggable {
 
-    private static final int KEEP_ALIVE_INTERVAL_MS = 290000;
+    public static final String KEY_TYPE   = "type";
+    public static final String KEY_TOPIC  = "topic";
+    public static final String KEY_TOPICS = "topics";
+    public static final String KEY_DELTAS = "deltas";
 
-    private final Starter starter;
+    public static final String KEY_RESUME_FROM = "resumeFrom";
+    public static final String KEY_RESUMED     = "resumed";
 
-    private Session currentSession = null;
+    public static final String TYPE_SUBSCRIBE   = "subscribe";
+    public static final String TYPE_UNSUBSCRIBE = "unsubscribe";
+
+    public static final String EVENT_SUBSCRIPTIONS      = "Subscriptions";
+    public static final String EVENT_CONNECTION_OPTIONS = "ConnectionOptions";
+
+    private final Starter                                starter;
+    private final ConnectionOptions                      options;
+    private final LocalWebsocketSender                   sender;
+    //Null unless the client negotiated permessage-deflate
+    private final LocalDeflateExtension.NegotiatedConfig deflateConfig;
+
+    private volatile Session currentSession    = null;
     private volatile boolean markedForShutdown = false;
+    //Receives JSON patches instead of full states after the initial snapshot
+    private volatile boolean deltaMode         = false;
+
+    private final ClientSendQueue                  queue;
+    //Set while a write is in flight, only its owner may send the next message
+    private final AtomicBoolean                    sending  = new AtomicBoolean(false);
+    //Completed from the write callback's thread
+    private final AtomicReference<OutboundMessage> inFlight = new AtomicReference<>();
+
+    //Set while a batching window is open, the messages queued in the meantime share one frame
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
 
-    private final TimerTask keepAliveTask  = new TimerTask() {
+    //RPC requests that have not been answered yet
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    private final AtomicLong sent            = new AtomicLong();
+    private final AtomicLong sentBytes       = new AtomicLong();
+    private final AtomicLong batchesSent     = new AtomicLong();
+    private final AtomicLong batchedMessages = new AtomicLong();
+
+    private final WriteCallback writeCallback = new WriteCallback() {
         @Override
-        public void run() {
-            messageQueue.offer("");
+        public void writeFailed(Throwable x) {
+            log(LogLevel.WARN, "Failed to send message: " + x.getMessage());
+            completeInFlight();
         }
-    };
-    private final Timer     keepAliveTimer = new java.util.Timer();
-
-    private final ConcurrentLinkedQueue<String> messageQueue        = new ConcurrentLinkedQueue<>();
-    private final Thread                        messageSenderThread = new Thread(() -> {
-        while (!Thread.currentThread().isInterrupted()) {
-            if (messageQueue.isEmpty() || currentSession == null) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    return;
-                }
-                continue;
-            }
-            String message = messageQueue.poll();
-            if (message == null) continue;
-            try {
-                currentSession.getRemote().sendString(message);
-            } catch (Exception e) {
 
-            }
+        @Override
+        public void writeSuccess() {
+            completeInFlight();
         }
-    });
+    };
 
     public LocalWebsocket(Starter starter) {
+        this(starter, ConnectionOptions.DEFAULT, null);
+    }
+
+    /**
+     * @param deflateConfig The accepted permessage-deflate offer, null if compression was not negotiated
+     */
+    public LocalWebsocket(Starter starter, ConnectionOptions options, LocalDeflateExtension.NegotiatedConfig deflateConfig) {
         this.starter = starter;
+        this.options = options;
+        this.deflateConfig = deflateConfig;
+        this.sender = starter.getLocalServer().getSender();
+        this.queue = new ClientSendQueue(starter.getLocalServer().getClientQueuePolicy(), sender, this::requestFlush);
     }
 
     public void externalShutdown() {
@@ -61,15 +109,292 @@ public class LocalWebsocket implements Loggable {
             log("External shutdown invoked");
             starter.getLocalServer().removeWebsocketConnection(this);
             markedForShutdown = true;
+            queue.close();
+            Optional.ofNullable(currentSession).ifPresent(Session::close);
         }
     }
 
+    private void disconnectSlowConsumer() {
+        if (markedForShutdown) return;
+        log(LogLevel.WARN, "Disconnecting slow consumer, send queue is full");
+        starter.getLocalServer().removeWebsocketConnection(this);
+        markedForShutdown = true;
+        queue.close();
+        Optional.ofNullable(currentSession).ifPresent(session -> session.close(StatusCode.TRY_AGAIN_LATER, "Slow consumer"));
+    }
+
     public void sendMessage(String message) {
-        messageQueue.offer(message);
+        sendMessage(message, EventPriority.BULK);
+    }
+
+    public void sendMessage(String message, EventPriority priority) {
+        OutboundMessage outboundMessage = getEncoding().isBinary()
+                ? OutboundMessage.ofBinary(ByteBuffer.wrap(CborEncoder.encodeMessage(message)), priority, null, null)
+                : OutboundMessage.ofText(message, priority, null);
+        sendMessage(outboundMessage);
+        outboundMessage.release();
+    }
+
+    /**
+     * Encodes the message straight from the JSON tree in this connection's encoding
+     */
+    public void sendMessage(JsonElement message, EventPriority priority) {
+        OutboundMessage outboundMessage = getEncoding().isBinary()
+                ? OutboundMessage.ofBinary(ByteBuffer.wrap(CborEncoder.encode(message)), priority, null, null)
+                : OutboundMessage.ofText(message.toString(), priority, null);
+        sendMessage(outboundMessage);
+        outboundMessage.release();
+    }
+
+    /**
+     * Queues a shared message, the websocket takes its own reference and releases it once the message is sent
+     */
+    public void sendMessage(OutboundMessage message) {
+        if (markedForShutdown) return;
+        if (!queue.offer(message)) {
+            disconnectSlowConsumer();
+            return;
+        }
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        if (!options.isBatching() || queue.getQueuedBytes() >= options.getBatchMaxBytes()) {
+            sender.requestDrain(this);
+            return;
+        }
+        if (!flushScheduled.compareAndSet(false, true)) return;
+        sender.schedule(() -> {
+            flushScheduled.set(false);
+            drain();
+        }, options.getBatchWindowMs());
+    }
+
+    public boolean isDeltaMode() {
+        return deltaMode;
+    }
+
+    public MessageEncoding getEncoding() {
+        return options.getEncoding();
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = queue.getStats();
+        Session session = currentSession;
+        if (session != null) stats.addProperty("remoteAddress", String.valueOf(session.getRemoteAddress()));
+        stats.addProperty("deltaMode", deltaMode);
+        stats.addProperty("sent", sent.get());
+        stats.addProperty("sentBytes", sentBytes.get());
+        stats.addProperty("batchesSent", batchesSent.get());
+        stats.addProperty("batchedMessages", batchedMessages.get());
+        stats.addProperty("pendingRequests", pendingRequests.get());
+        stats.add("options", options.toJson());
+        Optional.ofNullable(deflateConfig).flatMap(LocalDeflateExtension.NegotiatedConfig::getExtension).ifPresent(extension -> stats.add("compression", extension.getStats()));
+        JsonArray topics = new JsonArray();
+        starter.getLocalServer().getTopicIndex().getTopics(this).forEach(topics::add);
+        stats.add(KEY_TOPICS, topics);
+        return stats;
+    }
+
+    /**
+     * Starts sending queued messages unless a write is already in flight, runs on the shared sender thread
+     */
+    void drain() {
+        if (currentSession == null) return;
+        if (!sending.compareAndSet(false, true)) return;
+        sendNext();
+    }
+
+    private void completeInFlight() {
+        //Only the completion of an actual write may hand the next one over
+        OutboundMessage message = inFlight.getAndSet(null);
+        if (message == null) return;
+        message.release();
+        sender.execute(this::sendNext);
+    }
+
+    private void sendNext() {
+        Session session = currentSession;
+        OutboundMessage message = options.isBatching() ? pollBatch() : queue.poll();
+        if (message != null && (session == null || markedForShutdown)) {
+            message.release();
+            message = null;
+        }
+
+        if (message == null) {
+            sending.set(false);
+            //A message may have been enqueued after polling but before releasing ownership
+            if (session != null && !markedForShutdown && !queue.isEmpty()) {
+                sender.requestDrain(this);
+            }
+            return;
+        }
+
+        ByteBuffer payload = message.getPayload();
+        if (payload == null) {
+            message.release();
+            sender.execute(this::sendNext);
+            return;
+        }
+        inFlight.set(message);
+        sent.incrementAndGet();
+        sentBytes.addAndGet(message.getSize());
+        try {
+            RemoteEndpoint remote = session.getRemote();
+            if (message.isBinary()) {
+                remote.sendBytes(payload, writeCallback);
+            } else if (remote instanceof WebSocketRemoteEndpoint) {
+                //The public API only takes a String for text, which Jetty would encode once per client again
+                ((WebSocketRemoteEndpoint) remote).uncheckedSendFrame(new TextFrame().setPayload(payload), writeCallback);
+            } else {
+                remote.sendString(StandardCharsets.UTF_8.decode(payload).toString(), writeCallback);
+            }
+        } catch (Exception e) {
+            writeCallback.writeFailed(e);
+        }
+    }
+
+    /**
+     * Combines queued messages up to the byte budget into one JSON array, messages that are no JSON become string elements
+     */
+    private OutboundMessage pollBatch() {
+        if (getEncoding().isBinary()) return pollBinaryBatch();
+        OutboundMessage message = queue.poll();
+        if (message == null) return null;
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(Math.min(options.getBatchMaxBytes(), (int) queue.getQueuedBytes() + message.getSize() + 16));
+        batch.write('[');
+        int count = 0;
+        while (message != null) {
+            if (count > 0) batch.write(',');
+            writeBatchElement(batch, message);
+            message.release();
+            count++;
+            message = queue.pollIfFits(options.getBatchMaxBytes() - batch.size() - 2L);
+        }
+        batch.write(']');
+        batchesSent.incrementAndGet();
+        batchedMessages.addAndGet(count);
+        return OutboundMessage.ofEncoded(ByteBuffer.wrap(batch.toByteArray()), EventPriority.BULK, null);
+    }
+
+    /**
+     * Combines queued messages up to the byte budget into one CBOR array, the encoded items are concatenated as is
+     */
+    private OutboundMessage pollBinaryBatch() {
+        OutboundMessage message = queue.poll();
+        if (message == null) return null;
+        ByteArrayOutputStream items = new ByteArrayOutputStream(Math.min(options.getBatchMaxBytes(), (int) queue.getQueuedBytes() + message.getSize()));
+        int count = 0;
+        while (message != null) {
+            ByteBuffer payload = message.getPayload();
+            if (payload == null) {
+                CborEncoder.write(items, null);
+            } else {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                items.write(bytes, 0, bytes.length);
+            }
+            message.release();
+            count++;
+            //Leaves room for the largest array header
+            message = queue.pollIfFits(options.getBatchMaxBytes() - items.size() - 9L);
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(items.size() + 9);
+        CborEncoder.writeArrayHeader(batch, count);
+        byte[] encodedItems = items.toByteArray();
+        batch.write(encodedItems, 0, encodedItems.length);
+        batchesSent.incrementAndGet();
+        batchedMessages.addAndGet(count);
+        return OutboundMessage.ofBinary(ByteBuffer.wrap(batch.toByteArray()), EventPriority.BULK, null, null);
+    }
+
+    private static void writeBatchElement(ByteArrayOutputStream batch, OutboundMessage message) {
+        ByteBuffer payload = message.getPayload();
+        if (payload == null) {
+            batch.write('n');
+            batch.write('u');
+            batch.write('l');
+            batch.write('l');
+            return;
+        }
+        byte first = payload.hasRemaining() ? payload.get(payload.position()) : 0;
+        if (first == '{' || first == '[') {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            batch.write(bytes, 0, bytes.length);
+            return;
+        }
+        byte[] escaped = new JsonPrimitive(StandardCharsets.UTF_8.decode(payload).toString()).toString().getBytes(StandardCharsets.UTF_8);
+        batch.write(escaped, 0, escaped.length);
     }
 
     @OnWebSocketMessage
-    public void onMessage(String message) {}
+    public void onMessage(String message) {
+        Optional<JsonObject> optRequest = Util.parseJson(message).flatMap(Util::getAsJsonObject);
+        if (!optRequest.isPresent()) return;
+        JsonObject request = optRequest.get();
+        String type = Util.getString(request, KEY_TYPE, "");
+        switch (type) {
+            case TYPE_SUBSCRIBE:
+                Util.getOptBool(request, KEY_DELTAS).ifPresent(deltas -> deltaMode = deltas);
+                List<String> topics = getRequestedTopics(request);
+                OptionalLong resumeFrom = Util.getOptLong(request, KEY_RESUME_FROM);
+                //Without the missed events the client has to start over with fresh snapshots
+                boolean resumed = resumeFrom.isPresent() && starter.getLocalServer().resume(this, topics, resumeFrom.getAsLong());
+                if (!resumed) {
+                    for (String topic : topics) {
+                        starter.getDataManger().subscribe(
+                                topic,
+                                () -> starter.getLocalServer().getTopicIndex().subscribe(this, topic),
+                                this::sendMessage
+                        );
+                    }
+                }
+                sendSubscriptions(resumed);
+                break;
+            case LocalRpcDispatcher.TYPE_REQUEST:
+                starter.getLocalServer().getRpcDispatcher().dispatch(this, request, pendingRequests);
+                break;
+            case TYPE_UNSUBSCRIBE:
+                getRequestedTopics(request).forEach(topic -> starter.getLocalServer().getTopicIndex().unsubscribe(this, topic));
+                sendSubscriptions(false);
+                break;
+            default:
+                log(LogLevel.DEBUG, "Ignoring message of unknown type: " + type);
+                break;
+        }
+    }
+
+    private static List<String> getRequestedTopics(JsonObject request) {
+        List<String> topics = new ArrayList<>();
+        Util.getOptString(request, KEY_TOPIC).ifPresent(topics::add);
+        Util.getOptJSONArray(request, KEY_TOPICS).ifPresent(array -> {
+            for (JsonElement element : array) {
+                if (element.isJsonPrimitive()) topics.add(element.getAsString());
+            }
+        });
+        return topics;
+    }
+
+    private void sendConnectionOptions() {
+        JsonObject event = new JsonObject();
+        event.addProperty(BasicDataManager.KEY_EVENT_TYPE, EVENT_CONNECTION_OPTIONS);
+        event.add(BasicDataManager.KEY_EVENT_DATA, options.toJson());
+        sendMessage(event.toString(), EventPriority.HIGH);
+    }
+
+    private void sendSubscriptions(boolean resumed) {
+        JsonArray topics = new JsonArray();
+        starter.getLocalServer().getTopicIndex().getTopics(this).forEach(topics::add);
+        JsonObject data = new JsonObject();
+        data.add(KEY_TOPICS, topics);
+        data.addProperty(KEY_RESUMED, resumed);
+        data.addProperty(LocalServer.KEY_SEQUENCE, starter.getLocalServer().getLastSequence());
+        JsonObject event = new JsonObject();
+        event.addProperty(BasicDataManager.KEY_EVENT_TYPE, EVENT_SUBSCRIPTIONS);
+        event.add(BasicDataManager.KEY_EVENT_DATA, data);
+        sendMessage(event.toString(), EventPriority.HIGH);
+    }
 
     @OnWebSocketConnect
     public void onConnect(Session session) {
@@ -77,9 +402,9 @@ public class LocalWebsocket implements Loggable {
         currentSession = session;
         starter.getLocalServer().addWebsocketConnection(this);
         log("Client connected! " + session.getRemoteAddress().getAddress());
-        messageSenderThread.start();
-        keepAliveTimer.schedule(keepAliveTask, 0, KEEP_ALIVE_INTERVAL_MS);
+        sendMessage("");
         sendMessage("Hello Client!");
+        if (options != ConnectionOptions.DEFAULT) sendConnectionOptions();
     }
 
     @OnWebSocketClose
@@ -87,8 +412,8 @@ public class LocalWebsocket implements Loggable {
         log("Client disconnected! " + reason);
         markedForShutdown = true;
         currentSession = null;
-        messageSenderThread.interrupt();
-        keepAliveTask.cancel();
+        starter.getLocalServer().removeWebsocketConnection(this);
+        queue.close();
     }
 
     @OnWebSocketError
@@ -0,0 +1,85 @@
+package com.iambadatplaying.server;
+
+import com.iambadatplaying.Managable;
+import com.iambadatplaying.logger.LogLevel;
+import com.iambadatplaying.logger.Loggable;
+import com.iambadatplaying.logger.SimpleLogger;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single scheduler shared by all {@link LocalWebsocket}s.
+ * Connections ask for a drain when a message is enqueued, the actual writes are asynchronous,
+ * so one thread is enough for any number of clients and idles at zero CPU.
+ */
+public class LocalWebsocketSender implements Managable, Loggable {
+
+    private volatile ScheduledExecutorService executor = null;
+
+    public void requestDrain(LocalWebsocket websocket) {
+        execute(websocket::drain);
+    }
+
+    public void execute(Runnable task) {
+        ScheduledExecutorService currentExecutor = executor;
+        if (currentExecutor == null) return;
+        try {
+            currentExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            //Shutting down
+        }
+    }
+
+    public void schedule(Runnable task, long delayMs) {
+        ScheduledExecutorService currentExecutor = executor;
+        if (currentExecutor == null) return;
+        try {
+            currentExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //Shutting down
+        }
+    }
+
+    public void scheduleAtFixedRate(Runnable task, long periodMs) {
+        ScheduledExecutorService currentExecutor = executor;
+        if (currentExecutor == null) return;
+        currentExecutor.scheduleAtFixedRate(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (executor != null) return;
+        ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "LocalWebsocketSender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        newExecutor.setRemoveOnCancelPolicy(true);
+        executor = newExecutor;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    @Override
+    public void log(Object o) {
+        log(LogLevel.DEBUG, o);
+    }
+
+    @Override
+    public void log(LogLevel level, Object o) {
+        SimpleLogger.getInstance().log(level, this.getClass().getSimpleName() + ": " + o);
+    }
+}
@@ -0,0 +1,29 @@
+package com.iambadatplaying.server;
+
+import java.util.Optional;
+
+/**
+ * Wire format of the messages sent to a local websocket client, negotiated when connecting
+ */
+public enum MessageEncoding {
+    /**
+     * Text frames holding JSON, the default
+     */
+    JSON,
+    /**
+     * Binary frames holding CBOR (RFC 8949), encoded straight from the JSON tree
+     */
+    CBOR;
+
+    public static Optional<MessageEncoding> fromParameter(String value) {
+        if (value == null) return Optional.empty();
+        for (MessageEncoding encoding : values()) {
+            if (encoding.name().equalsIgnoreCase(value.trim())) return Optional.of(encoding);
+        }
+        return Optional.empty();
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+}
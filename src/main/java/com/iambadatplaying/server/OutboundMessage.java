@@ -0,0 +1,106 @@
+package com.iambadatplaying.server;
+
+import com.iambadatplaying.data.dispatch.EventPriority;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A message that is encoded exactly once and then shared by the send queues of every recipient.
+ * Every queue holding the message owns one reference, the payload is released once the last send completed.
+ * Every recipient sends from its own view on the shared payload, the message is never encoded again.
+ */
+public class OutboundMessage {
+
+    private final    EventPriority             priority;
+    private final    String                    conflationKey;
+    private final    boolean                   binary;
+    private final    int                       size;
+    private final    AtomicInteger             references = new AtomicInteger(1);
+    private final    Consumer<OutboundMessage> onRelease;
+    private volatile ByteBuffer                payload;
+
+    private OutboundMessage(ByteBuffer payload, EventPriority priority, String conflationKey, boolean binary, Consumer<OutboundMessage> onRelease) {
+        this.payload = payload;
+        this.size = payload.remaining();
+        this.priority = priority;
+        this.conflationKey = conflationKey;
+        this.binary = binary;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * @param onRelease Invoked once the last reference is released, may be null
+     * @return A message holding one reference that belongs to the caller
+     */
+    public static OutboundMessage ofText(String message, EventPriority priority, Consumer<OutboundMessage> onRelease) {
+        return ofText(message, priority, null, onRelease);
+    }
+
+    /**
+     * @param conflationKey Messages with the same key carry a full state, so a queued one may be replaced by a newer one.
+     *                      Null if the message must never be skipped.
+     */
+    public static OutboundMessage ofText(String message, EventPriority priority, String conflationKey, Consumer<OutboundMessage> onRelease) {
+        return new OutboundMessage(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), priority, conflationKey, false, onRelease);
+    }
+
+    /**
+     * @param payload An already UTF-8 encoded text message, it must not be modified afterwards
+     * @return A message holding one reference that belongs to the caller
+     */
+    public static OutboundMessage ofEncoded(ByteBuffer payload, EventPriority priority, Consumer<OutboundMessage> onRelease) {
+        return new OutboundMessage(payload, priority, null, false, onRelease);
+    }
+
+    /**
+     * @param payload An encoded binary message, it must not be modified afterwards
+     * @return A message holding one reference that belongs to the caller
+     */
+    public static OutboundMessage ofBinary(ByteBuffer payload, EventPriority priority, String conflationKey, Consumer<OutboundMessage> onRelease) {
+        return new OutboundMessage(payload, priority, conflationKey, true, onRelease);
+    }
+
+    public EventPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return True if the payload has to be sent as a binary frame
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public String getConflationKey() {
+        return conflationKey;
+    }
+
+    /**
+     * @return Size of the encoded payload in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return A view on the shared payload with its own position, null if the message was already released
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer currentPayload = payload;
+        return currentPayload == null ? null : currentPayload.duplicate();
+    }
+
+    public OutboundMessage retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (references.decrementAndGet() != 0) return;
+        payload = null;
+        if (onRelease != null) onRelease.accept(this);
+    }
+}
@@ -0,0 +1,159 @@
+package com.iambadatplaying.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Server side index of which subscribers want which topics.
+ * A subscriber receives every topic until it subscribes to its first one, subscribing to {@link #TOPIC_ALL}
+ * restores that behaviour. Lookups only touch the subscriber sets of the published topics,
+ * so publishing never has to ask every subscriber whether it is interested.
+ */
+public class TopicIndex<T> {
+
+    public static final String TOPIC_ALL       = "*";
+    public static final String TOPIC_SEPARATOR = "/";
+
+    private final Set<T>              unfiltered   = new CopyOnWriteArraySet<>();
+    private final Map<String, Set<T>> subscribers  = new ConcurrentHashMap<>();
+    private final Map<T, Set<String>> topicsByUser = new ConcurrentHashMap<>();
+    private final List<Runnable>      listeners    = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return The topic of a single key of a map, e.g. "Sessions/&lt;sessionId&gt;"
+     */
+    public static String getKeyTopic(String topic, String key) {
+        return topic + TOPIC_SEPARATOR + key;
+    }
+
+    /**
+     * @return The event name of a topic, the topic itself unless it is a key topic
+     */
+    public static String getBaseTopic(String topic) {
+        int separator = topic.indexOf(TOPIC_SEPARATOR);
+        return separator < 0 ? topic : topic.substring(0, separator);
+    }
+
+    /**
+     * @param listener Invoked outside of the index's lock whenever a subscriber was added, removed or changed its topics
+     */
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void register(T subscriber) {
+        unfiltered.add(subscriber);
+        notifyListeners();
+    }
+
+    public void remove(T subscriber) {
+        synchronized (this) {
+            unfiltered.remove(subscriber);
+            Set<String> topics = topicsByUser.remove(subscriber);
+            if (topics != null) {
+                for (String topic : topics) {
+                    removeSubscriber(topic, subscriber);
+                }
+            }
+        }
+        notifyListeners();
+    }
+
+    public void subscribe(T subscriber, String topic) {
+        if (topic == null || topic.isEmpty()) return;
+        synchronized (this) {
+            if (TOPIC_ALL.equals(topic)) {
+                unfiltered.add(subscriber);
+            } else {
+                unfiltered.remove(subscriber);
+                topicsByUser.computeIfAbsent(subscriber, s -> new CopyOnWriteArraySet<>()).add(topic);
+                subscribers.computeIfAbsent(topic, t -> new CopyOnWriteArraySet<>()).add(subscriber);
+            }
+        }
+        notifyListeners();
+    }
+
+    public void unsubscribe(T subscriber, String topic) {
+        if (topic == null) return;
+        synchronized (this) {
+            //A subscriber that explicitly unsubscribes is filtered from now on
+            unfiltered.remove(subscriber);
+            if (!TOPIC_ALL.equals(topic)) {
+                Set<String> topics = topicsByUser.get(subscriber);
+                if (topics != null) topics.remove(topic);
+                removeSubscriber(topic, subscriber);
+            }
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private void removeSubscriber(String topic, T subscriber) {
+        Set<T> topicSubscribers = subscribers.get(topic);
+        if (topicSubscribers == null) return;
+        topicSubscribers.remove(subscriber);
+        if (topicSubscribers.isEmpty()) subscribers.remove(topic);
+    }
+
+    /**
+     * @return The topics the subscriber explicitly subscribed to, {@link #TOPIC_ALL} if it is unfiltered
+     */
+    public Set<String> getTopics(T subscriber) {
+        if (unfiltered.contains(subscriber)) return Collections.singleton(TOPIC_ALL);
+        Set<String> topics = topicsByUser.get(subscriber);
+        return topics == null ? Collections.emptySet() : Collections.unmodifiableSet(topics);
+    }
+
+    /**
+     * @return Everyone who wants at least one of the topics, every subscriber is contained at most once
+     */
+    public Set<T> getRecipients(String... topics) {
+        Set<T> recipients = new LinkedHashSet<>(unfiltered);
+        for (String topic : topics) {
+            if (topic == null) continue;
+            Set<T> topicSubscribers = subscribers.get(topic);
+            if (topicSubscribers != null) recipients.addAll(topicSubscribers);
+        }
+        return recipients;
+    }
+
+    /**
+     * @return True if the subscriber wants at least one of the topics
+     */
+    public boolean isRecipient(T subscriber, String... topics) {
+        if (unfiltered.contains(subscriber)) return true;
+        for (String topic : topics) {
+            if (topic == null) continue;
+            Set<T> topicSubscribers = subscribers.get(topic);
+            if (topicSubscribers != null && topicSubscribers.contains(subscriber)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Every topic at least one subscriber explicitly subscribed to
+     */
+    public Set<String> getSubscribedTopics() {
+        return new HashSet<>(subscribers.keySet());
+    }
+
+    public int getTopicCount() {
+        return subscribers.size();
+    }
+
+    public int getUnfilteredCount() {
+        return unfiltered.size();
+    }
+}
@@ -4,8 +4,10 @@ import com.iambadatplaying.Starter;
 import com.iambadatplaying.server.rest.providers.GsonJsonElementMessageBodyReader;
 import com.iambadatplaying.server.rest.providers.GsonJsonElementMessageBodyWriter;
 import com.iambadatplaying.server.rest.servlets.debug.DebugServletV1;
+import com.iambadatplaying.server.rest.servlets.events.EventStreamServlet;
 import com.iambadatplaying.server.rest.servlets.games.GameControlServlet;
 import com.iambadatplaying.server.rest.servlets.login.LoginServletV1;
+import com.iambadatplaying.server.rest.servlets.state.StateServletV1;
 import com.iambadatplaying.server.rest.servlets.valolytics.ValolyticsServletV1;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -28,6 +30,38 @@ public class RestContextHandler extends ServletContextHandler {
         addEchoServlet();
         addLaunchGameServlet();
         addExperimentalServlet();
+        addEventStreamServlet();
+        addStateServlet();
+    }
+
+    private void addStateServlet() {
+        StringBuilder sb = new StringBuilder();
+        buildProviderList(
+                sb,
+                GsonJsonElementMessageBodyReader.class,
+                GsonJsonElementMessageBodyWriter.class
+        );
+
+        buildServletList(
+                sb,
+                StateServletV1.class
+        );
+
+        sb.delete(sb.length() - 1, sb.length());
+        ServletHolder stateServletHolder = addServlet(ServletContainer.class, "/state/*");
+        stateServletHolder.setInitOrder(0);
+        //Long-polling requests are suspended without holding a thread
+        stateServletHolder.setAsyncSupported(true);
+        stateServletHolder.setInitParameter(
+                "jersey.config.server.provider.classnames",
+                sb.toString()
+        );
+    }
+
+    private void addEventStreamServlet() {
+        ServletHolder eventStreamServletHolder = new ServletHolder(EventStreamServlet.class);
+        eventStreamServletHolder.setAsyncSupported(true);
+        addServlet(eventStreamServletHolder, "/events");
     }
 
     private void addExperimentalServlet() {
@@ -94,6 +94,68 @@ public class DebugServletV1 {
                 .build();
     }
 
+    @GET
+    @Path("/pipeline")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPipelineStats() {
+        Starter starter = (Starter) context.getAttribute(RestContextHandler.KEY_CONTEXT_STARTER);
+
+        if (starter == null) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .build();
+        }
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(starter.getDataManger().getPipelineStats())
+                .build();
+    }
+
+    @GET
+    @Path("/rcwebsocket")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getRCWebsocketStats() {
+        Starter starter = (Starter) context.getAttribute(RestContextHandler.KEY_CONTEXT_STARTER);
+
+        if (starter == null) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .build();
+        }
+
+        Optional<JsonObject> optStats = starter.getRCConnector().getRCClient().getWebsocketStats();
+        if (!optStats.isPresent()) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ServletUtils.createResponseJson("Not connected to the RC websocket"))
+                    .build();
+        }
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(optStats.get())
+                .build();
+    }
+
+    @GET
+    @Path("/websockets")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getWebsocketStats() {
+        Starter starter = (Starter) context.getAttribute(RestContextHandler.KEY_CONTEXT_STARTER);
+
+        if (starter == null) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .build();
+        }
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(starter.getLocalServer().getWebsocketStats())
+                .build();
+    }
+
     @POST
     @Path("/connect")
     @Produces(MediaType.APPLICATION_JSON)
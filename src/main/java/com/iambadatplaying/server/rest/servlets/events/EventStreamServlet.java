@@ -0,0 +1,114 @@
+package com.iambadatplaying.server.rest.servlets.events;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Starter;
+import com.iambadatplaying.Util;
+import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.server.EventStreamConnection;
+import com.iambadatplaying.server.EventStreamHub;
+import com.iambadatplaying.server.LocalServer;
+import com.iambadatplaying.server.LocalWebsocket;
+import com.iambadatplaying.server.rest.RestContextHandler;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * Read-only Server-Sent Events stream of the events the local websocket broadcasts, e.g.
+ * {@code /rest/events?events=RSOAuthentication,Sessions}. Without the parameter every event is sent.
+ * A reconnecting subscriber passes the Last-Event-ID header, or the lastEventId parameter, to receive the events it missed.
+ */
+public class EventStreamServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String PARAM_EVENTS         = "events";
+    public static final String PARAM_LAST_EVENT_ID  = "lastEventId";
+    public static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
+    public static final String CONTENT_TYPE = "text/event-stream";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Starter starter = (Starter) getServletContext().getAttribute(RestContextHandler.KEY_CONTEXT_STARTER);
+        LocalServer localServer = starter.getLocalServer();
+        List<String> topics = getRequestedTopics(request);
+        OptionalLong lastEventId = getLastEventId(request);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-cache");
+        response.flushBuffer();
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        EventStreamHub hub = localServer.getEventStreamHub();
+        EventStreamConnection connection = new EventStreamConnection(asyncContext, !topics.isEmpty(), hub::remove);
+
+        boolean resumed = localServer.openEventStream(connection, topics, lastEventId);
+        if (!resumed) {
+            for (String topic : topics) {
+                starter.getDataManger().subscribe(
+                        topic,
+                        () -> connection.addTopic(topic),
+                        (initialData, priority) -> connection.send(createInitialFrame(topic, initialData))
+                );
+            }
+        }
+        connection.send(createSubscriptionsFrame(connection, resumed, localServer.getLastSequence()));
+    }
+
+    private static byte[] createInitialFrame(String topic, String initialData) {
+        //The snapshot contains every event up to its sequence number, so it is a valid point to resume from
+        long sequence = Util.parseJson(initialData)
+                .flatMap(Util::getAsJsonObject)
+                .map(data -> Util.getOptLong(data, LocalServer.KEY_SEQUENCE).orElse(0))
+                .orElse(0L);
+        return EventStreamHub.createFrame(sequence, topic, initialData);
+    }
+
+    private static byte[] createSubscriptionsFrame(EventStreamConnection connection, boolean resumed, long sequence) {
+        JsonArray topics = new JsonArray();
+        connection.getTopics().forEach(topics::add);
+        JsonObject data = new JsonObject();
+        data.add(LocalWebsocket.KEY_TOPICS, topics);
+        data.addProperty(LocalWebsocket.KEY_RESUMED, resumed);
+        data.addProperty(LocalServer.KEY_SEQUENCE, sequence);
+        JsonObject event = new JsonObject();
+        event.addProperty(BasicDataManager.KEY_EVENT_TYPE, LocalWebsocket.EVENT_SUBSCRIPTIONS);
+        event.add(BasicDataManager.KEY_EVENT_DATA, data);
+        return EventStreamHub.createFrame(0, LocalWebsocket.EVENT_SUBSCRIPTIONS, event.toString());
+    }
+
+    private static List<String> getRequestedTopics(HttpServletRequest request) {
+        List<String> topics = new ArrayList<>();
+        String[] values = request.getParameterValues(PARAM_EVENTS);
+        if (values == null) return topics;
+        for (String value : values) {
+            for (String topic : value.split(",")) {
+                if (!topic.trim().isEmpty()) topics.add(topic.trim());
+            }
+        }
+        return topics;
+    }
+
+    private static OptionalLong getLastEventId(HttpServletRequest request) {
+        String value = request.getHeader(HEADER_LAST_EVENT_ID);
+        if (value == null) value = request.getParameter(PARAM_LAST_EVENT_ID);
+        if (value == null) return OptionalLong.empty();
+        try {
+            return OptionalLong.of(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.iambadatplaying.server.rest.servlets.state;
+
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Starter;
+import com.iambadatplaying.data.BasicDataManager;
+import com.iambadatplaying.data.VersionedState;
+import com.iambadatplaying.server.rest.RestContextHandler;
+import com.iambadatplaying.server.rest.servlets.ServletUtils;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read access to the published state of every data manager, addressed by its event name.
+ * Responses carry an ETag of the state's version, {@code ?waitForChangeSince=<version>&timeout=<seconds>}
+ * holds the request until a newer version is published or the timeout expires.
+ */
+@Path("/v1")
+public class StateServletV1 {
+
+    public static final String KEY_VERSION = "version";
+    public static final String KEY_DATA    = "data";
+
+    public static final int DEFAULT_TIMEOUT_SECONDS = 30;
+    public static final int MAX_TIMEOUT_SECONDS     = 120;
+
+    //Versions restart with the application, the ETags of an earlier run must not match
+    private static final String INSTANCE_ID = Long.toString(System.currentTimeMillis(), 36);
+
+    @Context
+    private ServletContext context;
+
+    @GET
+    @Path("/{eventName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getState(
+            @PathParam("eventName") String eventName,
+            @QueryParam("waitForChangeSince") Long waitForChangeSince,
+            @QueryParam("timeout") @DefaultValue("" + DEFAULT_TIMEOUT_SECONDS) int timeoutSeconds,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+            @Suspended AsyncResponse asyncResponse
+    ) {
+        Starter starter = (Starter) context.getAttribute(RestContextHandler.KEY_CONTEXT_STARTER);
+
+        if (starter == null) {
+            asyncResponse.resume(Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .build());
+            return;
+        }
+
+        Optional<BasicDataManager> optManager = starter.getDataManger().getEventManager(eventName);
+        if (!optManager.isPresent() || !optManager.get().isRunning()) {
+            asyncResponse.resume(Response
+                    .status(Response.Status.NOT_FOUND)
+                    .entity(ServletUtils.createResponseJson("Not Found", "No data manager for event " + eventName))
+                    .build());
+            return;
+        }
+
+        respond(optManager.get(), waitForChangeSince, timeoutSeconds, ifNoneMatch, asyncResponse);
+    }
+
+    /**
+     * Resumes the response with the published state of the manager, right away or once it changed after the given version
+     */
+    public static void respond(BasicDataManager manager, Long waitForChangeSince, int timeoutSeconds, String ifNoneMatch, AsyncResponse asyncResponse) {
+        if (waitForChangeSince == null || manager.getVersion() > waitForChangeSince) {
+            asyncResponse.resume(createStateResponse(manager, ifNoneMatch));
+            return;
+        }
+
+        Runnable onChange = () -> asyncResponse.resume(createStateResponse(manager, ifNoneMatch));
+        asyncResponse.setTimeoutHandler(response -> {
+            manager.cancelAwaitChange(onChange);
+            //Nothing changed, a client sending the current ETag gets a 304
+            response.resume(createStateResponse(manager, ifNoneMatch));
+        });
+        asyncResponse.setTimeout(Math.max(1, Math.min(MAX_TIMEOUT_SECONDS, timeoutSeconds)), TimeUnit.SECONDS);
+        manager.awaitChange(waitForChangeSince, onChange);
+    }
+
+    private static Response createStateResponse(BasicDataManager manager, String ifNoneMatch) {
+        Optional<VersionedState> optState = manager.getVersionedState();
+        if (!optState.isPresent()) {
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .entity(ServletUtils.createResponseJson("Not Found", "No state available"))
+                    .build();
+        }
+
+        VersionedState state = optState.get();
+        EntityTag entityTag = new EntityTag(INSTANCE_ID + "-" + state.getVersion());
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        if (matches(ifNoneMatch, entityTag)) {
+            return Response
+                    .notModified(entityTag)
+                    .cacheControl(cacheControl)
+                    .build();
+        }
+
+        JsonObject body = new JsonObject();
+        body.addProperty(KEY_VERSION, state.getVersion());
+        body.add(KEY_DATA, state.getState());
+        return Response
+                .status(Response.Status.OK)
+                .tag(entityTag)
+                .cacheControl(cacheControl)
+                .entity(body)
+                .build();
+    }
+
+    private static boolean matches(String ifNoneMatch, EntityTag entityTag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if ("*".equals(tag)) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("\"" + entityTag.getValue() + "\"")) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.server.CborEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CborEncoderTest {
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testEncodeObject() {
+        JsonObject object = new JsonObject();
+        object.addProperty("a", 1);
+        JsonArray array = new JsonArray();
+        array.add(-1);
+        array.add(500);
+        array.add(true);
+        object.add("b", array);
+        //RFC 8949 Appendix A: {"a": 1, "b": [-1, 500, true]}
+        Assert.assertEquals("a2616101616283201901f4f5", hex(CborEncoder.encode(object)));
+    }
+
+    @Test
+    public void testEncodeMessage() {
+        Assert.assertEquals("6449455446", hex(CborEncoder.encodeMessage("IETF")));
+        Assert.assertEquals("fb3ff199999999999a", hex(CborEncoder.encodeMessage("[1.1]")).substring(2));
+        Assert.assertEquals("f6", hex(CborEncoder.encodeMessage("[null]")).substring(2));
+    }
+}
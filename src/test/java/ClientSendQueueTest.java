@@ -0,0 +1,61 @@
+import com.iambadatplaying.data.dispatch.EventPriority;
+import com.iambadatplaying.server.ClientQueuePolicy;
+import com.iambadatplaying.server.ClientSendQueue;
+import com.iambadatplaying.server.LocalWebsocketSender;
+import com.iambadatplaying.server.OutboundMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class ClientSendQueueTest {
+
+    private static OutboundMessage message(String text, String key) {
+        return OutboundMessage.ofText(text, EventPriority.BULK, key, null);
+    }
+
+    private static String text(OutboundMessage message) {
+        return StandardCharsets.UTF_8.decode(message.getPayload()).toString();
+    }
+
+    @Test
+    public void testConflationKeepsLatestAtTheEnd() {
+        ClientSendQueue queue = new ClientSendQueue(new ClientQueuePolicy(true, 0, 16, true), new LocalWebsocketSender(), () -> {});
+        Assert.assertTrue(queue.offer(message("locale-1", "Locale")));
+        Assert.assertTrue(queue.offer(message("patch", null)));
+        Assert.assertTrue(queue.offer(message("locale-2", "Locale")));
+
+        Assert.assertEquals("patch", text(queue.poll()));
+        Assert.assertEquals("locale-2", text(queue.poll()));
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(1, queue.getStats().get("conflated").getAsLong());
+    }
+
+    @Test
+    public void testOverflowPolicies() {
+        ClientSendQueue disconnecting = new ClientSendQueue(new ClientQueuePolicy(false, 0, 2, true), new LocalWebsocketSender(), () -> {});
+        Assert.assertTrue(disconnecting.offer(message("a", null)));
+        Assert.assertTrue(disconnecting.offer(message("b", null)));
+        Assert.assertFalse("Slow consumers are disconnected", disconnecting.offer(message("c", null)));
+
+        ClientSendQueue dropping = new ClientSendQueue(new ClientQueuePolicy(false, 0, 2, false), new LocalWebsocketSender(), () -> {});
+        dropping.offer(message("a", null));
+        dropping.offer(message("b", null));
+        Assert.assertTrue(dropping.offer(message("c", null)));
+        Assert.assertEquals("b", text(dropping.poll()));
+        Assert.assertEquals("c", text(dropping.poll()));
+        Assert.assertEquals(1, dropping.getStats().get("dropped").getAsLong());
+    }
+
+    @Test
+    public void testRateLimitHoldsBackUpdates() {
+        ClientSendQueue queue = new ClientSendQueue(new ClientQueuePolicy(true, 1, 16, true), new LocalWebsocketSender(), () -> {});
+        queue.offer(message("first", "Sessions/a"));
+        queue.offer(message("second", "Sessions/a"));
+        queue.offer(message("third", "Sessions/a"));
+        Assert.assertEquals("first", text(queue.poll()));
+        Assert.assertNull("Updates within the interval are held back", queue.poll());
+        Assert.assertEquals(1, queue.getStats().get("heldBack").getAsInt());
+        Assert.assertEquals(2, queue.getStats().get("rateLimited").getAsLong());
+    }
+}
@@ -0,0 +1,80 @@
+import com.google.gson.JsonPrimitive;
+import com.iambadatplaying.data.dispatch.DataEvent;
+import com.iambadatplaying.data.dispatch.EventCoalescer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class EventCoalescerTest {
+
+    private final List<DataEvent> forwarded = new CopyOnWriteArrayList<>();
+    private       EventCoalescer  coalescer;
+
+    private EventCoalescer start(long windowMs) {
+        coalescer = new EventCoalescer(windowMs, event -> event.getUri().startsWith("/rso"), forwarded::add);
+        coalescer.start();
+        return coalescer;
+    }
+
+    private static DataEvent event(String type, String uri, int value) {
+        return new DataEvent(type, uri, new JsonPrimitive(value));
+    }
+
+    private void awaitForwarded(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (forwarded.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(count, forwarded.size());
+    }
+
+    @After
+    public void stop() {
+        if (coalescer != null) coalescer.stop();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertEquals(0, EventCoalescer.DEFAULT_WINDOW_MS);
+        start(EventCoalescer.DEFAULT_WINDOW_MS).submit(event(DataEvent.TYPE_UPDATE, "/a", 1));
+        Assert.assertEquals(1, forwarded.size());
+    }
+
+    @Test
+    public void testWindowFlushKeepsLatestUpdate() throws InterruptedException {
+        start(50);
+        coalescer.submit(event(DataEvent.TYPE_UPDATE, "/a", 1));
+        coalescer.submit(event(DataEvent.TYPE_UPDATE, "/a", 2));
+        coalescer.submit(event(DataEvent.TYPE_UPDATE, "/b", 3));
+        Assert.assertTrue("Held back until the window ends", forwarded.isEmpty());
+
+        awaitForwarded(2);
+        DataEvent a = forwarded.get(0).getUri().equals("/a") ? forwarded.get(0) : forwarded.get(1);
+        Assert.assertEquals(2, a.getData().getAsInt());
+    }
+
+    @Test
+    public void testCreateAndDeleteAreNotMerged() {
+        start(10_000);
+        coalescer.submit(event(DataEvent.TYPE_CREATE, "/a", 1));
+        coalescer.submit(event(DataEvent.TYPE_UPDATE, "/a", 2));
+        coalescer.submit(event(DataEvent.TYPE_DELETE, "/a", 3));
+        coalescer.submit(event(DataEvent.TYPE_CREATE, "/a", 4));
+
+        Assert.assertEquals(4, forwarded.size());
+        Assert.assertEquals(DataEvent.TYPE_CREATE, forwarded.get(0).getType());
+        Assert.assertEquals(DataEvent.TYPE_UPDATE, forwarded.get(1).getType());
+        Assert.assertEquals(DataEvent.TYPE_DELETE, forwarded.get(2).getType());
+        Assert.assertEquals(4, forwarded.get(3).getData().getAsInt());
+    }
+
+    @Test
+    public void testBypassIsNotHeldBack() {
+        start(10_000);
+        coalescer.submit(event(DataEvent.TYPE_UPDATE, "/rso-authenticator/v1/authentication", 1));
+        Assert.assertEquals(1, forwarded.size());
+    }
+}
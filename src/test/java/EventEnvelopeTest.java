@@ -0,0 +1,31 @@
+import com.google.gson.JsonElement;
+import com.iambadatplaying.data.dispatch.EventEnvelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Optional;
+
+public class EventEnvelopeTest {
+
+    @Test
+    public void testReadEnvelope() {
+        String frame = "[8, \"OnJsonApiEvent\", {\"data\": {\"a\": [1, {\"b\": \"}]\\\"\"}]}, \"eventType\": \"Update\", \"uri\": \"/product-session/v1/sessions/x\"}]";
+        Optional<EventEnvelope> optEnvelope = EventEnvelope.read(frame);
+        Assert.assertTrue(optEnvelope.isPresent());
+        EventEnvelope envelope = optEnvelope.get();
+        Assert.assertEquals("Update", envelope.getType());
+        Assert.assertEquals("/product-session/v1/sessions/x", envelope.getUri());
+
+        Optional<JsonElement> data = envelope.parseData();
+        Assert.assertTrue(data.isPresent());
+        Assert.assertEquals("}]\"", data.get().getAsJsonObject().getAsJsonArray("a").get(1).getAsJsonObject().get("b").getAsString());
+    }
+
+    @Test
+    public void testRejectMalformedEnvelope() {
+        Assert.assertFalse(EventEnvelope.read("[8, \"OnJsonApiEvent\"]").isPresent());
+        Assert.assertFalse(EventEnvelope.read("[8, \"OnJsonApiEvent\", {\"uri\": \"/a\"}]").isPresent());
+        Assert.assertFalse(EventEnvelope.read("[8, \"OnJsonApiEvent\", {\"uri\": \"/a\", \"eventType\": \"Update\"").isPresent());
+        Assert.assertTrue(EventEnvelope.read("[8, \"OnJsonApiEvent\", {\"uri\": \"/a\", \"eventType\": \"Delete\", \"data\": null}]").isPresent());
+    }
+}
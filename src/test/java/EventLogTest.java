@@ -0,0 +1,73 @@
+import com.iambadatplaying.data.dispatch.EventPriority;
+import com.iambadatplaying.server.EventLog;
+import com.iambadatplaying.server.LocalServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class EventLogTest {
+
+    private static ByteBuffer encode(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    @Test
+    public void testStampSequence() {
+        Assert.assertEquals("{\"seq\":7,\"eventType\":\"Locale\"}", LocalServer.stampSequence("{\"eventType\":\"Locale\"}", 7));
+        Assert.assertEquals("{\"seq\":7}", LocalServer.stampSequence("{}", 7));
+        Assert.assertEquals("CONNECTED", LocalServer.stampSequence("CONNECTED", 7));
+    }
+
+    @Test
+    public void testReplayAfterWrapAround() {
+        EventLog log = new EventLog(32);
+        String[] topics = {"Locale"};
+        for (int i = 0; i < 10; i++) {
+            log.append(topics, EventPriority.BULK, encode("event-" + i), i % 2 == 0 ? null : encode("p" + i));
+        }
+        Assert.assertEquals(10, log.getLastSequence());
+        Assert.assertFalse("Old events were evicted", log.canResumeFrom(1));
+        Assert.assertTrue(log.canResumeFrom(8));
+        Assert.assertTrue(log.canResumeFrom(10));
+        Assert.assertFalse(log.canResumeFrom(11));
+
+        List<EventLog.Entry> entries = log.getEntriesAfter(8);
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals(9, entries.get(0).getSequence());
+        Assert.assertEquals("event-8", decode(log.readPayload(entries.get(0), false)));
+        Assert.assertTrue(entries.get(1).hasPatch());
+        Assert.assertEquals("event-9", decode(log.readPayload(entries.get(1), false)));
+        Assert.assertEquals("p9", decode(log.readPayload(entries.get(1), true)));
+    }
+
+    @Test
+    public void testBinaryVariants() {
+        EventLog log = new EventLog(64);
+        log.append(new String[0], EventPriority.BULK, encode("full"), encode("patch"), encode("FULL"), null);
+        log.append(new String[0], EventPriority.BULK, encode("other"), null, null, encode("ignored"));
+
+        List<EventLog.Entry> entries = log.getEntriesAfter(0);
+        Assert.assertTrue(entries.get(0).hasBinary(false));
+        Assert.assertFalse(entries.get(0).hasBinary(true));
+        Assert.assertEquals("FULL", decode(log.readPayload(entries.get(0), false, true)));
+        Assert.assertEquals("patch", decode(log.readPayload(entries.get(0), true)));
+        Assert.assertFalse("Without a patch there is no binary patch either", entries.get(1).hasBinary(true));
+        Assert.assertEquals("other", decode(log.readPayload(entries.get(1), false)));
+    }
+
+    @Test
+    public void testOversizedEventBreaksResume() {
+        EventLog log = new EventLog(16);
+        log.append(new String[0], EventPriority.BULK, encode("small"), null);
+        log.append(new String[0], EventPriority.BULK, encode("much too large for the log"), null);
+        Assert.assertFalse(log.canResumeFrom(1));
+        Assert.assertTrue(log.canResumeFrom(2));
+    }
+}
@@ -0,0 +1,76 @@
+import com.iambadatplaying.data.dispatch.DataEvent;
+import com.iambadatplaying.data.dispatch.EventPipeline;
+import com.iambadatplaying.data.dispatch.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventPipelineTest {
+
+    @Test
+    public void testDeleteSurvivesOverflow() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+        EventPipeline pipeline = new EventPipeline("test", 1, 2, OverflowPolicy.COALESCE, event -> "same", event -> {
+            received.add(event.toString());
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (DataEvent.TYPE_DELETE.equals(event.getType())) done.countDown();
+        });
+        pipeline.start();
+        try {
+            //The worker holds on to the first event, so the lane fills up
+            pipeline.submit(new DataEvent(DataEvent.TYPE_CREATE, "/a", null));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            pipeline.submit(new DataEvent(DataEvent.TYPE_UPDATE, "/b", null));
+            pipeline.submit(new DataEvent(DataEvent.TYPE_CREATE, "/c", null));
+            pipeline.submit(new DataEvent(DataEvent.TYPE_DELETE, "/a", null));
+            release.countDown();
+
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals("Create /a", received.get(0));
+            Assert.assertEquals("Create /c", received.get(1));
+            Assert.assertEquals("Delete /a", received.get(2));
+            Assert.assertEquals(3, received.size());
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void testStopWaitsForTheWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        EventPipeline pipeline = new EventPipeline("test", 1, 2, OverflowPolicy.BLOCK, event -> "same", event -> {
+            active.incrementAndGet();
+            started.countDown();
+            //Ignores the interrupt, like a consumer stuck in a call that can not be cancelled
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+            active.decrementAndGet();
+        });
+        pipeline.start();
+        pipeline.submit(new DataEvent(DataEvent.TYPE_UPDATE, "/a", null));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+        Assert.assertEquals("A restart must not run next to the old worker", 0, active.get());
+    }
+
+    @Test
+    public void testBlocksByDefault() {
+        Assert.assertEquals(OverflowPolicy.BLOCK, EventPipeline.DEFAULT_OVERFLOW_POLICY);
+    }
+}
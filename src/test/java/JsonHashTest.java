@@ -0,0 +1,27 @@
+import com.iambadatplaying.Util;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonHashTest {
+
+    private static long hash(String json) {
+        return Util.hashJsonElement(Util.parseJson(json).get());
+    }
+
+    @Test
+    public void testHashConsistentWithEquality() {
+        Assert.assertEquals(hash("{\"a\": 1, \"b\": [1, 2]}"), hash("{\"b\": [1, 2], \"a\": 1}"));
+        Assert.assertEquals(hash("{\"a\": 1}"), hash("{\"a\": 1.0}"));
+        Assert.assertNotEquals(hash("[1, 2]"), hash("[2, 1]"));
+        Assert.assertNotEquals(hash("{\"a\": \"Aa\"}"), hash("{\"a\": \"BB\"}"));
+        Assert.assertNotEquals(hash("{\"a\": {\"b\": 1}}"), hash("{\"a\": {\"c\": 1}}"));
+        Assert.assertNotEquals(hash("{\"a\": 1}"), hash("{\"a\": \"1\"}"));
+    }
+
+    @Test
+    public void testNumbersUseAllBits() {
+        Assert.assertNotEquals(hash("{\"a\": 0}"), hash("{\"a\": 4294967297}"));
+        Assert.assertNotEquals(hash("[1]"), hash("[1.0000000001]"));
+        Assert.assertEquals(hash("[0]"), hash("[-0.0]"));
+    }
+}
@@ -0,0 +1,92 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.data.JsonPatch;
+
+/**
+ * Applies the patches produced by {@link JsonPatch}, only the tests need to verify them
+ */
+public class JsonPatchApplier {
+
+    private JsonPatchApplier() {}
+
+    private static String unescape(String token) {
+        return token.replace("~1", "/").replace("~0", "~");
+    }
+
+    /**
+     * Applies add, remove and replace operations as produced by {@link JsonPatch#diff(JsonElement, JsonElement)}.
+     *
+     * @return The patched document, the input document is modified in place unless the root is replaced
+     */
+    public static JsonElement apply(JsonElement document, JsonArray patch) {
+        for (JsonElement element : patch) {
+            JsonObject operation = element.getAsJsonObject();
+            String op = operation.get(JsonPatch.KEY_OP).getAsString();
+            String path = operation.get(JsonPatch.KEY_PATH).getAsString();
+            JsonElement value = operation.get(JsonPatch.KEY_VALUE);
+            if (path.isEmpty()) {
+                document = JsonPatch.OP_REMOVE.equals(op) ? JsonNull.INSTANCE : value;
+                continue;
+            }
+
+            int lastSeparator = path.lastIndexOf('/');
+            JsonElement parent = resolve(document, path.substring(0, lastSeparator));
+            String token = unescape(path.substring(lastSeparator + 1));
+            if (parent.isJsonObject()) {
+                if (JsonPatch.OP_REMOVE.equals(op)) {
+                    parent.getAsJsonObject().remove(token);
+                } else {
+                    parent.getAsJsonObject().add(token, value);
+                }
+            } else if (parent.isJsonArray()) {
+                JsonArray array = parent.getAsJsonArray();
+                if ("-".equals(token)) {
+                    array.add(value);
+                    continue;
+                }
+                int index = Integer.parseInt(token);
+                switch (op) {
+                    case JsonPatch.OP_REMOVE:
+                        array.remove(index);
+                        break;
+                    case JsonPatch.OP_REPLACE:
+                        array.set(index, value);
+                        break;
+                    default:
+                        insert(array, index, value);
+                        break;
+                }
+            } else {
+                throw new IllegalArgumentException("Can not apply " + op + " to " + path);
+            }
+        }
+        return document;
+    }
+
+    private static JsonElement resolve(JsonElement document, String pointer) {
+        JsonElement current = document;
+        if (pointer.isEmpty()) return current;
+        for (String rawToken : pointer.substring(1).split("/", -1)) {
+            String token = unescape(rawToken);
+            if (current.isJsonObject()) {
+                current = current.getAsJsonObject().get(token);
+            } else if (current.isJsonArray()) {
+                current = current.getAsJsonArray().get(Integer.parseInt(token));
+            } else {
+                current = null;
+            }
+            if (current == null) throw new IllegalArgumentException("Path " + pointer + " does not exist");
+        }
+        return current;
+    }
+
+    private static void insert(JsonArray array, int index, JsonElement value) {
+        array.add(value);
+        for (int i = array.size() - 1; i > index; i--) {
+            array.set(i, array.get(i - 1));
+        }
+        array.set(index, value);
+    }
+}
@@ -0,0 +1,50 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.iambadatplaying.Util;
+import com.iambadatplaying.data.JsonPatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonPatchTest {
+
+    private static JsonElement parse(String json) {
+        return JsonParser.parseString(json);
+    }
+
+    private static void assertRoundTrip(String source, String target) {
+        JsonArray patch = JsonPatch.diff(parse(source), parse(target));
+        JsonElement patched = JsonPatchApplier.apply(parse(source), patch);
+        Assert.assertTrue("Patch " + patch + " must turn " + source + " into " + target, Util.equalJsonElements(parse(target), patched));
+    }
+
+    @Test
+    public void testEqualDocumentsProduceEmptyPatch() {
+        Assert.assertEquals(0, JsonPatch.diff(parse("{\"a\":1,\"b\":[1,2]}"), parse("{\"b\":[1,2],\"a\":1}")).size());
+    }
+
+    @Test
+    public void testSingleChangeIsSmall() {
+        JsonArray patch = JsonPatch.diff(parse("{\"a\":{\"b\":1,\"c\":\"x\"},\"d\":true}"), parse("{\"a\":{\"b\":2,\"c\":\"x\"},\"d\":true}"));
+        Assert.assertEquals(1, patch.size());
+        Assert.assertEquals("replace", patch.get(0).getAsJsonObject().get("op").getAsString());
+        Assert.assertEquals("/a/b", patch.get(0).getAsJsonObject().get("path").getAsString());
+    }
+
+    @Test
+    public void testRoundTrips() {
+        assertRoundTrip("{\"a\":1}", "{\"b\":2}");
+        assertRoundTrip("{\"a\":[1,2,3]}", "{\"a\":[1,4]}");
+        assertRoundTrip("{\"a\":[1]}", "{\"a\":[1,{\"x\":null},3]}");
+        assertRoundTrip("{\"a/b\":1,\"c~d\":2}", "{\"a/b\":3}");
+        assertRoundTrip("{\"a\":{\"b\":1}}", "{\"a\":[1]}");
+        assertRoundTrip("{\"a\":1}", "null");
+    }
+
+    @Test
+    public void testKeyPatch() {
+        JsonArray patch = JsonPatch.diff(null, parse("{\"productId\":\"valorant\"}"), "/" + JsonPatch.escape("session/1"));
+        JsonElement patched = JsonPatchApplier.apply(parse("{}"), patch);
+        Assert.assertEquals("valorant", patched.getAsJsonObject().getAsJsonObject("session/1").get("productId").getAsString());
+    }
+}
@@ -0,0 +1,139 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.data.map.AtomicVersionedMap;
+import com.iambadatplaying.data.map.PersistentHashMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+public class PersistentHashMapTest {
+
+    //Equal hash codes for every key with the same value modulo 8, forces collision nodes
+    private static class CollidingKey {
+        private final int value;
+
+        private CollidingKey(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value % 8;
+        }
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(42);
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.empty();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(expected.size(), map.entrySet().stream().count());
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 64; i++) {
+            map = map.plus(new CollidingKey(i), i);
+        }
+        Assert.assertEquals(64, map.size());
+        for (int i = 0; i < 64; i += 2) {
+            map = map.minus(new CollidingKey(i));
+        }
+        Assert.assertEquals(32, map.size());
+        Assert.assertNull(map.get(new CollidingKey(2)));
+        Assert.assertEquals(Integer.valueOf(3), map.get(new CollidingKey(3)));
+        Assert.assertEquals(32, map.entrySet().stream().count());
+    }
+
+    @Test
+    public void testUpdatesLeaveSnapshotsUntouched() {
+        PersistentHashMap<String, String> first = PersistentHashMap.<String, String>empty().plus("a", "1");
+        PersistentHashMap<String, String> second = first.plus("a", "2").plus("b", "3");
+        Assert.assertEquals("1", first.get("a"));
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals("2", second.get("a"));
+        Assert.assertSame(first, first.minus("c"));
+    }
+
+    @Test
+    public void testVersionOnlyChangesOnUpdates() {
+        AtomicVersionedMap<String, String> map = new AtomicVersionedMap<>();
+        Assert.assertNull(map.put("a", "1"));
+        PersistentHashMap<String, String> snapshot = map.getMap();
+        Assert.assertEquals(1, map.getVersion());
+        Assert.assertNull(map.remove("b"));
+        Assert.assertEquals(1, map.getVersion());
+        Assert.assertEquals("1", map.remove("a"));
+        Assert.assertEquals(2, map.getVersion());
+        Assert.assertEquals("1", snapshot.get("a"));
+    }
+
+    @Test
+    public void testIndexFollowsUpdates() {
+        AtomicVersionedMap<String, String> map = new AtomicVersionedMap<>();
+        map.put("a", "x1");
+        map.addIndex("first", value -> Optional.of(value.charAt(0)));
+        map.put("b", "x2");
+        map.put("c", "y1");
+        Assert.assertEquals(2, map.lookup("first", 'x').size());
+
+        AtomicVersionedMap.Snapshot<String, String> snapshot = map.snapshot();
+        map.put("a", "y2");
+        map.remove("b");
+        Assert.assertTrue(map.lookup("first", 'x').isEmpty());
+        Assert.assertEquals("y2", map.lookup("first", 'y').get("a"));
+        Assert.assertEquals(2, snapshot.lookup("first", 'x').size());
+
+        map.clear();
+        Assert.assertTrue(map.lookup("first", 'y').isEmpty());
+        Assert.assertTrue(map.lookup("missing", 'y').isEmpty());
+    }
+
+    @Test
+    public void testIndexFollowsValuesModifiedInPlace() {
+        AtomicVersionedMap<String, JsonObject> map = new AtomicVersionedMap<>();
+        map.addIndex("game", value -> Optional.ofNullable(value.get("game")).map(JsonElement::getAsString));
+        JsonObject session = new JsonObject();
+        session.addProperty("game", "valorant");
+        map.put("a", session);
+
+        //The stored value changes its attribute before it is put again
+        session.addProperty("game", "league");
+        map.put("a", session);
+        Assert.assertTrue(map.lookup("game", "valorant").isEmpty());
+        Assert.assertSame(session, map.lookup("game", "league").get("a"));
+
+        //Replaced by another value after the stored one changed again
+        session.addProperty("game", "tft");
+        JsonObject replacement = new JsonObject();
+        replacement.addProperty("game", "valorant");
+        map.put("a", replacement);
+        Assert.assertTrue(map.lookup("game", "league").isEmpty());
+        Assert.assertSame(replacement, map.lookup("game", "valorant").get("a"));
+
+        replacement.remove("game");
+        map.remove("a");
+        Assert.assertTrue(map.lookup("game", "valorant").isEmpty());
+    }
+}
@@ -0,0 +1,56 @@
+import com.google.gson.JsonObject;
+import com.iambadatplaying.Util;
+import com.iambadatplaying.data.SnapshotStreamer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SnapshotStreamerTest {
+
+    private static Map<String, JsonObject> createEntries(int count) {
+        Map<String, JsonObject> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            JsonObject value = new JsonObject();
+            value.addProperty("index", i);
+            entries.put("key" + i, value);
+        }
+        return entries;
+    }
+
+    private static JsonObject parse(String message) {
+        return Util.parseJson(message).flatMap(Util::getAsJsonObject).orElseThrow(AssertionError::new);
+    }
+
+    @Test
+    public void testSmallSnapshotIsSingleMessage() {
+        List<String> messages = new ArrayList<>();
+        SnapshotStreamer.stream("InitialSessions", 3, createEntries(2).entrySet(), 1024, messages::add);
+        Assert.assertEquals(1, messages.size());
+        Assert.assertEquals("{\"seq\":3,\"eventType\":\"InitialSessions\",\"data\":{\"key0\":{\"index\":0},\"key1\":{\"index\":1}}}", messages.get(0));
+    }
+
+    @Test
+    public void testLargeSnapshotIsChunked() {
+        List<String> messages = new ArrayList<>();
+        SnapshotStreamer.stream("InitialSessions", 3, createEntries(100).entrySet(), 200, messages::add);
+        Assert.assertTrue(messages.size() > 3);
+        Assert.assertEquals("InitialSessionsBegin", parse(messages.get(0)).get("eventType").getAsString());
+        JsonObject end = parse(messages.get(messages.size() - 1));
+        Assert.assertEquals("InitialSessionsEnd", end.get("eventType").getAsString());
+        Assert.assertEquals(messages.size() - 2, end.getAsJsonObject("data").get("chunks").getAsInt());
+
+        JsonObject merged = new JsonObject();
+        for (String message : messages.subList(1, messages.size() - 1)) {
+            Assert.assertTrue(message.length() <= 200 + 64);
+            JsonObject chunk = parse(message);
+            Assert.assertEquals(3, chunk.get("seq").getAsLong());
+            chunk.getAsJsonObject("data").entrySet().forEach(entry -> merged.add(entry.getKey(), entry.getValue()));
+        }
+        Assert.assertEquals(100, merged.size());
+        Assert.assertEquals(99, merged.getAsJsonObject("key99").get("index").getAsInt());
+    }
+}
@@ -0,0 +1,118 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.iambadatplaying.data.map.MapDataManager;
+import com.iambadatplaying.server.rest.servlets.state.StateServletV1;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class StateServletTest {
+
+    private static class TestMapManager extends MapDataManager<String> {
+        private final List<JsonObject> broadcasts = new CopyOnWriteArrayList<>();
+
+        private TestMapManager() {
+            super(null);
+        }
+
+        //Recorded instead of sent, there is no server to publish to
+        @Override
+        protected synchronized void broadcast(JsonObject event, JsonArray patch, String... topics) {
+            broadcasts.add(event);
+        }
+
+        private void load(String key, JsonObject value) {
+            //Stored like a value loaded on demand, nothing is sent to the clients
+            putEntry(key, value);
+        }
+
+        @Override
+        protected Optional<String> parseKey(String key) {
+            return Optional.of(key);
+        }
+
+        @Override
+        public Optional<JsonObject> getExternal(String key) {
+            return get(key);
+        }
+
+        @Override
+        public Optional<JsonObject> load(String key) {
+            return Optional.empty();
+        }
+
+        @Override
+        public String getSingleKeyUpdateEventName() {
+            return "TestUpdate";
+        }
+
+        @Override
+        protected void doStart() {}
+
+        @Override
+        protected void doStop() {}
+
+        @Override
+        public void sendCurrentState() {
+            broadcastMap();
+        }
+
+        @Override
+        public Pattern getURIPattern() {
+            return Pattern.compile("/test/(.*)");
+        }
+
+        @Override
+        protected void doUpdateAndSend(Matcher uriMatcher, String type, JsonElement data) {}
+
+        @Override
+        public String getEventName() {
+            return "Test";
+        }
+    }
+
+    private final List<Object> resumed = new CopyOnWriteArrayList<>();
+
+    private AsyncResponse createAsyncResponse() {
+        return (AsyncResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{AsyncResponse.class}, (proxy, method, args) -> {
+            if ("resume".equals(method.getName())) resumed.add(args[0]);
+            return method.getReturnType() == boolean.class ? true : null;
+        });
+    }
+
+    @Test
+    public void testUnsentEntriesDoNotEndTheLongPoll() {
+        TestMapManager manager = new TestMapManager();
+        manager.load("a", new JsonObject());
+        Assert.assertEquals(1, manager.getEntriesVersion());
+
+        //The client already received the published state of version 0
+        StateServletV1.respond(manager, 0L, 30, null, createAsyncResponse());
+        Assert.assertTrue("Nothing was published, the request has to wait", resumed.isEmpty());
+    }
+
+    @Test
+    public void testStateIsReadWithoutSideEffects() {
+        TestMapManager manager = new TestMapManager();
+        //Loaded and sent like the sessions existing when the manager starts
+        manager.load("a", new JsonObject());
+        manager.sendCurrentState();
+        Assert.assertEquals(1, manager.broadcasts.size());
+
+        StateServletV1.respond(manager, null, 30, null, createAsyncResponse());
+        Assert.assertEquals(1, resumed.size());
+        Response response = (Response) resumed.get(0);
+        JsonObject body = (JsonObject) response.getEntity();
+        Assert.assertTrue(body.getAsJsonObject(StateServletV1.KEY_DATA).has("a"));
+        Assert.assertEquals("Reading must not publish", 1, manager.broadcasts.size());
+    }
+}
@@ -0,0 +1,64 @@
+import com.iambadatplaying.rcconnection.SubscriptionPlanner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+public class SubscriptionPlannerTest {
+
+    @Test
+    public void testTopicForPattern() {
+        Assert.assertEquals(Optional.of("OnJsonApiEvent_product-session_v1_sessions"), SubscriptionPlanner.getTopicForPattern(Pattern.compile("^/product-session/v1/sessions/(.*)")));
+        Assert.assertEquals(Optional.of("OnJsonApiEvent_rso-authenticator_v1_authentication"), SubscriptionPlanner.getTopicForPattern(Pattern.compile("/rso-authenticator/v1/authentication$")));
+        //Only complete path segments are usable
+        Assert.assertEquals(Optional.of("OnJsonApiEvent_riotclient"), SubscriptionPlanner.getTopicForPattern(Pattern.compile("/riotclient/v1?/locale")));
+        Assert.assertEquals(Optional.empty(), SubscriptionPlanner.getTopicForPattern(Pattern.compile("(.*)/sessions")));
+    }
+
+    @Test
+    public void testPlanFollowsInterests() {
+        SubscriptionPlanner planner = new SubscriptionPlanner(Runnable::run);
+        List<Set<String>> plans = new ArrayList<>();
+        planner.addListener(plans::add);
+        Assert.assertEquals(Collections.singleton(SubscriptionPlanner.FIREHOSE_TOPIC), planner.getPlan());
+
+        planner.setInterests("managers", Arrays.asList(Pattern.compile("^/product-session/v1/sessions/(.*)"), Pattern.compile("^/product-session/v1/sessions/(.*)/extra")));
+        Assert.assertEquals(Collections.singleton("OnJsonApiEvent_product-session_v1_sessions"), planner.getPlan());
+
+        planner.setInterests("clients", Collections.singletonList(Pattern.compile("/rso-authenticator/v1/authentication$")));
+        Assert.assertEquals(2, planner.getPlan().size());
+
+        planner.setInterests("clients", Collections.singletonList(Pattern.compile("(.*)")));
+        Assert.assertEquals(Collections.singleton(SubscriptionPlanner.FIREHOSE_TOPIC), planner.getPlan());
+
+        planner.removeInterests("clients");
+        Assert.assertEquals(Collections.singleton("OnJsonApiEvent_product-session_v1_sessions"), planner.getPlan());
+        Assert.assertEquals(4, plans.size());
+
+        //An unchanged plan is not announced again
+        planner.setInterests("clients", Collections.emptyList());
+        Assert.assertEquals(4, plans.size());
+    }
+
+    @Test
+    public void testOnlyTheLatestPlanIsAnnounced() {
+        List<Runnable> announcements = new ArrayList<>();
+        SubscriptionPlanner planner = new SubscriptionPlanner(announcements::add);
+        List<Set<String>> plans = new ArrayList<>();
+        planner.addListener(plans::add);
+
+        planner.setInterests("managers", Collections.singletonList(Pattern.compile("^/product-session/v1/sessions/(.*)")));
+        planner.setInterests("clients", Collections.singletonList(Pattern.compile("/rso-authenticator/v1/authentication$")));
+        Assert.assertTrue("Listeners must not run on the caller", plans.isEmpty());
+        Assert.assertEquals(1, announcements.size());
+
+        announcements.get(0).run();
+        Assert.assertEquals(Collections.singletonList(planner.getPlan()), plans);
+    }
+}
@@ -0,0 +1,54 @@
+import com.iambadatplaying.server.TopicIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+
+public class TopicIndexTest {
+
+    @Test
+    public void testUnfilteredUntilFirstSubscription() {
+        TopicIndex<String> index = new TopicIndex<>();
+        index.register("a");
+        index.register("b");
+        Assert.assertEquals(2, index.getRecipients("Locale").size());
+
+        index.subscribe("a", "RSOAuthentication");
+        Set<String> recipients = index.getRecipients("Locale");
+        Assert.assertEquals(1, recipients.size());
+        Assert.assertTrue(recipients.contains("b"));
+        Assert.assertEquals(2, index.getRecipients("RSOAuthentication").size());
+
+        index.subscribe("a", TopicIndex.TOPIC_ALL);
+        Assert.assertEquals(2, index.getRecipients("Locale").size());
+    }
+
+    @Test
+    public void testKeyTopics() {
+        TopicIndex<String> index = new TopicIndex<>();
+        index.register("map");
+        index.register("key");
+        index.subscribe("map", "Sessions");
+        index.subscribe("key", TopicIndex.getKeyTopic("Sessions", "abc"));
+
+        Assert.assertEquals(2, index.getRecipients("Sessions", TopicIndex.getKeyTopic("Sessions", "abc")).size());
+        Set<String> recipients = index.getRecipients("Sessions", TopicIndex.getKeyTopic("Sessions", "def"));
+        Assert.assertEquals(1, recipients.size());
+        Assert.assertTrue(recipients.contains("map"));
+    }
+
+    @Test
+    public void testRemove() {
+        TopicIndex<String> index = new TopicIndex<>();
+        index.register("a");
+        index.subscribe("a", "Locale");
+        index.unsubscribe("a", "Locale");
+        Assert.assertTrue(index.getRecipients("Locale").isEmpty());
+        Assert.assertEquals(0, index.getTopicCount());
+
+        index.subscribe("a", "Locale");
+        index.remove("a");
+        Assert.assertTrue(index.getRecipients("Locale").isEmpty());
+        Assert.assertTrue(index.getTopics("a").isEmpty());
+    }
+}
@@ -0,0 +1,45 @@
+import com.iambadatplaying.data.dispatch.UriRoutingIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class UriRoutingIndexTest {
+
+    @Test
+    public void testLiteralPrefix() {
+        Assert.assertEquals("/product-session/v1/sessions/", UriRoutingIndex.getLiteralPrefix("^/product-session/v1/sessions/(.*)"));
+        Assert.assertEquals("/rso-authenticator/v1/authentication", UriRoutingIndex.getLiteralPrefix("/rso-authenticator/v1/authentication$"));
+        Assert.assertEquals("/riotclient/v", UriRoutingIndex.getLiteralPrefix("/riotclient/v1?/locale"));
+        Assert.assertEquals("/a.b/", UriRoutingIndex.getLiteralPrefix("/a\\.b/\\d+"));
+        Assert.assertEquals("", UriRoutingIndex.getLiteralPrefix("/a|/b"));
+    }
+
+    @Test
+    public void testRouting() {
+        UriRoutingIndex<String> index = new UriRoutingIndex<>();
+        index.add(Pattern.compile("^/product-session/v1/sessions/(.*)"), "sessions");
+        index.add(Pattern.compile("/rso-authenticator/v1/authentication$"), "rso");
+
+        Assert.assertFalse("Reject unrelated URIs", index.mayMatch("/chat/v4/presences"));
+        Assert.assertTrue(index.mayMatch("/product-session/v1/sessions/abc"));
+
+        Assert.assertEquals(Collections.singletonList("sessions"), index.getCandidates("/product-session/v1/sessions/abc"));
+        Assert.assertEquals(Collections.singletonList("rso"), index.getCandidates("/rso-authenticator/v1/authentication"));
+        Assert.assertTrue(index.getCandidates("/chat/v4/presences").isEmpty());
+        Assert.assertTrue("The prefix must match completely", index.getCandidates("/product-session/v1/").isEmpty());
+    }
+
+    @Test
+    public void testFlaggedPatternsAreNotIndexed() {
+        UriRoutingIndex<String> index = new UriRoutingIndex<>();
+        index.add(Pattern.compile("^/Riotclient/Locale$", Pattern.CASE_INSENSITIVE), "locale");
+        index.add(Pattern.compile("/a.b", Pattern.LITERAL), "literal");
+
+        //The prefix can not be trusted, so both have to be matched against every URI
+        Assert.assertEquals(2, index.getCandidates("/riotclient/locale").size());
+        Assert.assertEquals(2, index.getCandidates("/axb").size());
+        Assert.assertTrue(index.mayMatch("/anything"));
+    }
+}